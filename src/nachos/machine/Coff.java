@@ -88,6 +88,9 @@ public class Coff {
                 }
             }
         }
+
+        if (Machine.processor() != null)
+            Machine.processor().addProfileSections(file.getName(), this);
     }
 
     /**
@@ -132,6 +135,9 @@ public class Coff {
     public void close() {
         file.close();
 
+        if (Machine.processor() != null)
+            Machine.processor().removeProfileSections(this);
+
         sections = null;
     }
 
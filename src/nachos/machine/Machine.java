@@ -360,6 +360,16 @@ public final class Machine {
         return autoGrader;
     }
 
+    /**
+     * Return the directory used by the stub file system. Devices that keep
+     * host files, such as a file-backed physical memory, create them here.
+     *
+     * @return the test directory.
+     */
+    static File testDirectory() {
+        return testDirectory;
+    }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
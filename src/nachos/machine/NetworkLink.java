@@ -57,6 +57,12 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * Packets are received by a host thread, which posts a receive interrupt as
+ * each one arrives, so nothing polls for packets while the network is quiet.
+ * Once the kernel receives a packet, the next one is not delivered until
+ * <tt>Stats.NetworkTime</tt> ticks later.
  */
 public class NetworkLink {
     /**
@@ -110,14 +116,18 @@ public class NetworkLink {
             }
         };
 
+        packetPosted = new Runnable() {
+            public void run() {
+                packetPosted();
+            }
+        };
+
         sendInterrupt = new Runnable() {
             public void run() {
                 sendInterrupt();
             }
         };
 
-        scheduleReceiveInterrupt();
-
         Thread receiveThread = new Thread(new Runnable() {
             public void run() {
                 receiveLoop();
@@ -162,11 +172,30 @@ public class NetworkLink {
     private void scheduleReceiveInterrupt() {
         privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
                 receiveInterrupt);
+        receiveScheduled = true;
     }
 
-    private synchronized void receiveInterrupt() {
+    private void receiveInterrupt() {
         Lib.assertTrue(incomingPacket == null);
 
+        receiveScheduled = false;
+        receivePacket();
+    }
+
+    private void packetPosted() {
+        // a packet is waiting to be received, or the next one isn't due yet
+        if (incomingPacket != null || receiveScheduled)
+            return;
+
+        receivePacket();
+    }
+
+    /**
+     * Deliver the packet from the receive thread, if there is one. If there
+     * isn't, or it is dropped, the receive thread will post an interrupt when
+     * the next one arrives.
+     */
+    private synchronized void receivePacket() {
         if (incomingBytes != null) {
             if (Machine.autoGrader().canReceivePacket(privilege)) {
                 try {
@@ -180,12 +209,8 @@ public class NetworkLink {
             incomingBytes = null;
             notify();
 
-            if (incomingPacket == null)
-                scheduleReceiveInterrupt();
-            else if (receiveInterruptHandler != null)
+            if (incomingPacket != null && receiveInterruptHandler != null)
                 receiveInterruptHandler.run();
-        } else {
-            scheduleReceiveInterrupt();
         }
     }
 
@@ -236,6 +261,8 @@ public class NetworkLink {
             synchronized (this) {
                 incomingBytes = packetBytes;
             }
+
+            privilege.interrupt.post("network packet", packetPosted);
         }
     }
 
@@ -310,6 +337,7 @@ public class NetworkLink {
     private Privilege privilege;
 
     private Runnable receiveInterrupt;
+    private Runnable packetPosted;
     private Runnable sendInterrupt;
 
     private Runnable receiveInterruptHandler = null;
@@ -323,6 +351,7 @@ public class NetworkLink {
 
     private byte[] incomingBytes = null;
     private Packet incomingPacket = null;
+    private boolean receiveScheduled = false;
     private Packet outgoingPacket = null;
 
     private boolean sendBusy = false;
@@ -4,6 +4,17 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -42,15 +53,52 @@ public final class Processor {
 
         this.numPhysPages = numPhysPages;
 
+        flushTranslationCache();
+
+        blockMode = Config.getBoolean("Processor.blockMode", false);
+        hotBlockThreshold =
+                Config.getInteger("Processor.hotBlockThreshold", 64);
+
+        if (Config.getBoolean("Processor.profile", false))
+            profiler = new Profiler(privilege);
+
+        String traceFile = Config.getString("Processor.traceFile", null);
+        if (traceFile != null)
+            tracer = new TraceWriter(privilege, traceFile);
+
+        mipsExceptions = new MipsException[exceptionNames.length];
+        for (int i = 0; i < exceptionNames.length; i++)
+            mipsExceptions[i] = new MipsException(i);
+
         for (int i = 0; i < numUserRegisters; i++)
             registers[i] = 0;
 
-        mainMemory = new byte[pageSize * numPhysPages];
+        String memoryBackend =
+                Config.getString("Processor.memoryBackend", "array");
+        if (memoryBackend.equals("mapped")) {
+            mapMemory(Config.getString("Processor.memoryFile", null));
+        } else {
+            Lib.assertTrue(memoryBackend.equals("array"),
+                    "unknown memory backend: " + memoryBackend);
+            mainMemory = new byte[pageSize * numPhysPages];
+            memoryView =
+                    ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        decodeCache = new Predecoded[numPhysPages][];
+        blockCache = new BasicBlock[numPhysPages][];
 
         if (usingTLB) {
+            tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+            tlbAssociativity =
+                    Config.getInteger("Processor.tlbAssociativity", tlbSize);
+            Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+                    tlbSize % tlbAssociativity == 0);
+            numTLBSets = tlbSize / tlbAssociativity;
+
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
                 translations[i] = new TranslationEntry();
+            tlbASIDs = new int[tlbSize];
         } else {
             translations = null;
         }
@@ -82,6 +130,23 @@ public final class Processor {
 
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * If <tt>Processor.blockMode</tt> is set in <tt>nachos.conf</tt>, the
+     * processor executes whole basic blocks at a time whenever it can (see
+     * <tt>runBlock()</tt>); otherwise, it executes one instruction at a time.
+     * Either way, the simulated time and the delivery of interrupts are the
+     * same.
+     *
+     * <p>
+     * If <tt>Processor.profile</tt> or <tt>Processor.traceFile</tt> is set,
+     * the processor always executes one instruction at a time, and reports
+     * every instruction to the profiler or the trace.
+     *
+     * <p>
+     * The debug flags are checked once, here. If none of <tt>p</tt>,
+     * <tt>m</tt> or <tt>M</tt> is enabled, the processor runs without any of
+     * its debugging hooks.
      */
     public void run() {
         Lib.debug(dbgProcessor, "starting program in current thread");
@@ -92,15 +157,164 @@ public final class Processor {
 
         Instruction inst = new Instruction();
 
+        debugging = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+                Lib.test(dbgFullDisassemble);
+
+        // disassembly is printed, and profiles and traces are kept, one
+        // instruction at a time
+        boolean useBlocks = blockMode && !debugging && profiler == null &&
+                tracer == null;
+
+        if (useBlocks) {
+            while (true) {
+                if (runBlock(inst))
+                    continue;
+
+                try {
+                    inst.run();
+                } catch (MipsException e) {
+                    e.handle();
+                }
+
+                privilege.interrupt.tick(false);
+            }
+        }
+
+        // user ticks that can pass before the next interrupt is due
+        int quietTicks = 0;
+        // user ticks of executed instructions that have not been charged yet
+        int owedTicks = 0;
+
         while (true) {
+            int pc = registers[regPC];
+
+            if (tracer != null)
+                tracer.registers(registers);
+
             try {
                 inst.run();
+
+                if (profiler != null)
+                    profiler.instruction(pc);
+                if (tracer != null)
+                    tracer.instruction(pc, inst.value, inst.size != 0,
+                            inst.addr);
             } catch (MipsException e) {
+                if (profiler != null)
+                    profiler.exception(pc, e.cause);
+                if (tracer != null)
+                    tracer.exception(pc, e.cause);
+
+                // the kernel must see the time this instruction faulted at
+                privilege.interrupt.advanceUserTicks(owedTicks);
+                owedTicks = 0;
+
                 e.handle();
+
+                // the handler may have scheduled interrupts or switched
+                // threads, so this instruction's tick has to be a real one
+                quietTicks = 0;
+            }
+
+            if (quietTicks > 0) {
+                quietTicks--;
+                owedTicks++;
+            } else {
+                privilege.interrupt.advanceUserTicks(owedTicks);
+                owedTicks = 0;
+
+                privilege.interrupt.tick(false);
+
+                quietTicks = privilege.interrupt.userTicksUntilDue();
             }
+        }
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, or as much of it as
+     * can run before the next interrupt is due. The code page is translated
+     * once for the whole block, and the user ticks of all but the last
+     * instruction are charged at once, so the simulated time is exactly what
+     * it would have been executing one instruction at a time.
+     *
+     * @param    inst    the instruction state to execute with.
+     * @return    <tt>false</tt> if nothing was executed, in which case the
+     * caller should execute a single instruction instead.
+     */
+    private boolean runBlock(Instruction inst) {
+        int pc = registers[regPC];
+
+        // a block can't start in a delay slot
+        if (registers[regNextPC] != pc + 4)
+            return false;
+
+        int paddr;
+        try {
+            paddr = translate(pc, 4, false);
+        } catch (MipsException e) {
+            // exactly what would have happened fetching a single instruction
+            e.handle();
+            privilege.interrupt.tick(false);
+            return true;
+        }
+
+        BasicBlock block = getBlock(paddr);
+        if (block.instructions.length == 0)
+            return false;
+
+        int quiet = privilege.interrupt.userTicksUntilDue();
+        int count = (quiet < block.instructions.length) ?
+                quiet + 1 : block.instructions.length;
+
+        int executed = 0;
+        try {
+            if (block.operations != null) {
+                // the kernel may have replaced the code through getMemory()
+                for (int i = 0; i < count; i++) {
+                    if (memoryView.getInt(paddr + i * 4) !=
+                            block.instructions[i].value) {
+                        invalidateBlocks(paddr / pageSize);
+                        return false;
+                    }
+                }
+
+                // a store may overwrite the rest of this block. An operation
+                // that faults isn't counted as executed, since its tick is
+                // charged after the exception is handled
+                while (executed < count && block.valid) {
+                    block.operations[executed].run(inst);
+                    executed++;
+                }
+            } else {
+                for (; executed < count; executed++) {
+                    Predecoded info = block.instructions[executed];
+
+                    // the kernel may have replaced the code through getMemory()
+                    if (memoryView.getInt(paddr + executed * 4) !=
+                            info.value) {
+                        invalidateBlocks(paddr / pageSize);
+                        break;
+                    }
+
+                    inst.run(info);
+                }
 
+                if (++block.executions == hotBlockThreshold)
+                    block.operations = compile(block);
+            }
+        } catch (MipsException e) {
+            privilege.interrupt.advanceUserTicks(executed);
+            e.handle();
             privilege.interrupt.tick(false);
+            return true;
         }
+
+        if (executed == 0)
+            return false;
+
+        privilege.interrupt.advanceUserTicks(executed - 1);
+        privilege.interrupt.tick(false);
+        return true;
     }
 
     /**
@@ -173,6 +387,10 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+        flushTranslationCache();
+
+        if (profiler != null)
+            profiler.switchSpace(pageTable);
     }
 
     /**
@@ -186,6 +404,35 @@ public final class Processor {
         return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is divided into <tt>getTLBSize() / getTLBAssociativity()</tt> sets,
+     * and a translation can only be found in the set chosen by
+     * <tt>getTLBSet()</tt>. Unless <tt>Processor.tlbAssociativity</tt> is set
+     * in <tt>nachos.conf</tt>, the TLB is fully associative.
+     *
+     * @return the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+        Lib.assertTrue(usingTLB);
+
+        return tlbAssociativity;
+    }
+
+    /**
+     * Return the index of the first TLB entry in the set that can hold a
+     * translation for the specified virtual page. The set consists of the
+     * <tt>getTLBAssociativity()</tt> entries starting at that index.
+     *
+     * @param    vpn    the virtual page number.
+     * @return the index of the first entry in the set for <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+        Lib.assertTrue(usingTLB);
+
+        return tlbSet(vpn) * tlbAssociativity;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -200,11 +447,26 @@ public final class Processor {
     }
 
     /**
-     * Fill the specified TLB entry.
+     * Return the address space ID the specified TLB entry was written with.
+     *
+     * @param    number    the index into the TLB.
+     * @return the address space ID of the specified TLB entry.
+     */
+    public int readTLBEntryASID(int number) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(number >= 0 && number < tlbSize);
+
+        return tlbASIDs[number];
+    }
+
+    /**
+     * Fill the specified TLB entry. The entry is tagged with the current
+     * address space ID, and will only be used while that ID is current.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Within a set, the TLB is fully associative, so the location of an entry
+     * within its set does not affect anything. A valid entry must be written
+     * to the set given by <tt>getTLBSet(entry.vpn)</tt>.
      *
      * @param    number    the index into the TLB.
      * @param    entry    the new contents of the TLB entry.
@@ -212,8 +474,108 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
+        Lib.assertTrue(!entry.valid ||
+                number / tlbAssociativity == tlbSet(entry.vpn));
 
         translations[number] = new TranslationEntry(entry);
+        tlbASIDs[number] = asid;
+        flushTranslationCache();
+    }
+
+    /**
+     * Return the current address space ID, set by the last call to
+     * <tt>setASID()</tt>.
+     *
+     * @return the current address space ID.
+     */
+    public int getASID() {
+        Lib.assertTrue(usingTLB);
+
+        return asid;
+    }
+
+    /**
+     * Set the current address space ID. Only TLB entries written while this
+     * ID was current will be used to translate addresses, so a kernel that
+     * gives each process its own ID does not need to invalidate the TLB on a
+     * context switch.
+     *
+     * @param    asid    the new address space ID.
+     */
+    public void setASID(int asid) {
+        Lib.assertTrue(usingTLB);
+
+        this.asid = asid;
+
+        if (profiler != null)
+            profiler.switchSpace(asid);
+    }
+
+    /**
+     * Return the set of the TLB that can hold a translation for the specified
+     * virtual page.
+     *
+     * @param    vpn    the virtual page number.
+     * @return the set number for <i>vpn</i>.
+     */
+    private int tlbSet(int vpn) {
+        // mix in the high bits, so that sets aren't just picked by the low
+        // bits of the page number
+        int hash = vpn ^ (vpn >>> 7) ^ (vpn >>> 14);
+
+        return (hash & 0x7FFFFFFF) % numTLBSets;
+    }
+
+    /**
+     * Return the current value of a performance counter. The counters count
+     * from when Nachos started, across all user programs; a kernel that wants
+     * per-process counts must take the difference across each period a
+     * process runs.
+     *
+     * @param    counter    the counter to read, one of the
+     * <tt>perfZZZ</tt> constants.
+     * @return the value of the counter.
+     */
+    public long readPerfCounter(int counter) {
+        Stats stats = privilege.stats;
+
+        switch (counter) {
+            case perfCycles:
+                return stats.totalTicks;
+            case perfInstructions:
+                return stats.userTicks / Stats.UserTick -
+                        stats.numFaultedInstructions;
+            case perfTLBMisses:
+                return stats.numTLBMisses;
+            case perfPageFaults:
+                return stats.numPageFaults;
+            default:
+                Lib.assertNotReached("bad performance counter");
+                return 0;
+        }
+    }
+
+    /**
+     * Tell the profiler, if there is one, about the sections of a newly
+     * loaded executable, so that it can name the PCs within them.
+     *
+     * @param    program    the name of the executable.
+     * @param    coff    the executable.
+     */
+    void addProfileSections(String program, Coff coff) {
+        if (profiler != null)
+            profiler.addSections(program, coff);
+    }
+
+    /**
+     * Tell the profiler, if there is one, that an executable is being
+     * closed, so that one that never ran is not mistaken for a later one.
+     *
+     * @param    coff    the executable.
+     */
+    void removeProfileSections(Coff coff) {
+        if (profiler != null)
+            profiler.removeSections(coff);
     }
 
     /**
@@ -230,12 +592,136 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Only the default <tt>array</tt> memory backend has such an array. Code
+     * that must also work with a file-backed memory should use
+     * <tt>readPhysicalMemory()</tt> and <tt>writePhysicalMemory()</tt>
+     * instead.
+     *
      * @return the main memory array.
      */
     public byte[] getMemory() {
+        Lib.assertTrue(mainMemory != null,
+                "physical memory is not backed by an array");
         return mainMemory;
     }
 
+    /**
+     * Transfer data from physical memory to the specified array. Works with
+     * every memory backend.
+     *
+     * @param    paddr    the first byte of physical memory to read.
+     * @param    data    the array where the data will be stored.
+     * @param    offset    the first byte to write in the array.
+     * @param    length    the number of bytes to transfer.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+                                   int length) {
+        Lib.assertTrue(paddr >= 0 && length >= 0 &&
+                paddr + length <= pageSize * numPhysPages);
+
+        if (mainMemory != null) {
+            System.arraycopy(mainMemory, paddr, data, offset, length);
+        } else {
+            ByteBuffer buffer = memoryView.duplicate();
+            buffer.position(paddr);
+            buffer.get(data, offset, length);
+        }
+    }
+
+    /**
+     * Transfer data from the specified array to physical memory. Works with
+     * every memory backend.
+     *
+     * @param    paddr    the first byte of physical memory to write.
+     * @param    data    the array containing the data to transfer.
+     * @param    offset    the first byte to transfer from the array.
+     * @param    length    the number of bytes to transfer.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+                                    int length) {
+        Lib.assertTrue(paddr >= 0 && length >= 0 &&
+                paddr + length <= pageSize * numPhysPages);
+
+        if (mainMemory != null) {
+            System.arraycopy(data, offset, mainMemory, paddr, length);
+        } else {
+            ByteBuffer buffer = memoryView.duplicate();
+            buffer.position(paddr);
+            buffer.put(data, offset, length);
+        }
+    }
+
+    /**
+     * Write any changes to a file-backed physical memory out to its file, so
+     * that the file holds a consistent snapshot of memory. Does nothing for
+     * the <tt>array</tt> backend.
+     */
+    public void syncMemory() {
+        if (mappedMemory != null)
+            mappedMemory.force();
+    }
+
+    /**
+     * Back physical memory with a file mapped into the host's address space,
+     * instead of a Java array. The file starts out empty and sparse, so host
+     * memory and disk are only committed for pages the kernel actually
+     * touches.
+     *
+     * @param    fileName    the name of the file in the test directory, or
+     * <tt>null</tt> to use a temporary file that is removed when Nachos
+     * exits.
+     */
+    private void mapMemory(final String fileName) {
+        final long size = (long) pageSize * numPhysPages;
+        Lib.assertTrue(size <= Integer.MAX_VALUE,
+                "too much physical memory to map");
+
+        try {
+            mappedMemory = (MappedByteBuffer) privilege.doPrivileged(
+                    new PrivilegedExceptionAction<MappedByteBuffer>() {
+                        public MappedByteBuffer run() throws IOException {
+                            File file;
+                            if (fileName == null) {
+                                file = File.createTempFile("nachos", ".mem",
+                                        Machine.testDirectory());
+                                file.deleteOnExit();
+                            } else {
+                                file = new File(Machine.testDirectory(),
+                                        fileName);
+                            }
+
+                            RandomAccessFile raf =
+                                    new RandomAccessFile(file, "rw");
+                            try {
+                                // truncate first, so memory starts zeroed
+                                raf.setLength(0);
+                                raf.setLength(size);
+                                return raf.getChannel().map(
+                                        FileChannel.MapMode.READ_WRITE, 0,
+                                        size);
+                            } finally {
+                                raf.close();
+                            }
+                        }
+                    });
+        } catch (PrivilegedActionException e) {
+            Lib.assertNotReached("unable to map physical memory: " +
+                    e.getException());
+        }
+
+        memoryView = mappedMemory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        // keep a named file usable as a snapshot of memory at exit
+        if (fileName != null) {
+            privilege.addExitNotificationHandler(new Runnable() {
+                public void run() {
+                    syncMemory();
+                }
+            });
+        }
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -273,10 +759,197 @@ public final class Processor {
         return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Disassemble an instruction, the same way the <tt>M</tt> debug flag
+     * prints it.
+     *
+     * @param    pc    the address of the instruction.
+     * @param    value    the instruction word.
+     * @param    registers    the registers before the instruction executed.
+     * @return the disassembled instruction.
+     */
+    static String disassemble(int pc, int value, int[] registers) {
+        Predecoded info = new Predecoded(value);
+
+        int jtarget;
+        if (info.format == Mips.RFMT)
+            jtarget = registers[info.rs];
+        else if (info.format == Mips.IFMT)
+            jtarget = pc + 4 + info.branchOffset;
+        else if (info.format == Mips.JFMT)
+            jtarget = ((pc + 4) & 0xF0000000) | (info.target << 2);
+        else
+            jtarget = -1;
+
+        String text = info.disassemble(jtarget, registers);
+        if (text.endsWith("\n"))
+            text = text.substring(0, text.length() - 1);
+
+        return text;
+    }
+
+    /**
+     * Test whether an instruction is a load or store.
+     *
+     * @param    value    the instruction word.
+     * @return <tt>true</tt> if the instruction accesses memory.
+     */
+    static boolean isMemoryAccess(int value) {
+        return new Predecoded(value).size != 0;
+    }
+
     private void finishLoad() {
         delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, found at
+     * physical address <i>paddr</i>. The result is cached per physical page,
+     * and is reused as long as memory at <i>paddr</i> still holds the same
+     * word, so kernel writes through <tt>getMemory()</tt> cannot leave a
+     * stale entry behind.
+     *
+     * @param    paddr    the physical address the instruction was fetched
+     * from.
+     * @param    value    the instruction word at <i>paddr</i>.
+     * @return the decoded instruction.
+     */
+    private Predecoded predecode(int paddr, int value) {
+        int ppn = paddr / pageSize;
+
+        Predecoded[] page = decodeCache[ppn];
+        if (page == null)
+            page = decodeCache[ppn] = new Predecoded[pageSize / 4];
+
+        int index = (paddr % pageSize) / 4;
+
+        Predecoded info = page[index];
+        if (info == null || info.value != value)
+            page[index] = info = new Predecoded(value);
+
+        return info;
+    }
+
+    /**
+     * Return the basic block starting at physical address <i>paddr</i>,
+     * building it if it is not already cached. A block runs up to and
+     * including the first branch and its delay slot, or the first
+     * instruction that always causes an exception, and never crosses a page
+     * boundary.
+     *
+     * @param    paddr    the physical address of the first instruction.
+     * @return the basic block. It is empty if the first instruction is a
+     * branch whose delay slot is on the next page.
+     */
+    private BasicBlock getBlock(int paddr) {
+        int ppn = paddr / pageSize;
+
+        BasicBlock[] page = blockCache[ppn];
+        if (page == null)
+            page = blockCache[ppn] = new BasicBlock[pageSize / 4];
+
+        int index = (paddr % pageSize) / 4;
+
+        BasicBlock block = page[index];
+        if (block != null)
+            return block;
+
+        int wordsPerPage = pageSize / 4;
+        Predecoded[] instructions = new Predecoded[wordsPerPage - index];
+        int length = 0;
+
+        for (int i = index; i < wordsPerPage; i++) {
+            int addr = ppn * pageSize + i * 4;
+            Predecoded info = predecode(addr, memoryView.getInt(addr));
+
+            if (Lib.test(Mips.BRANCH, info.flags)) {
+                if (i + 1 < wordsPerPage) {
+                    instructions[length++] = info;
+                    instructions[length++] =
+                            predecode(addr + 4, memoryView.getInt(addr + 4));
+                }
+                break;
+            }
+
+            instructions[length++] = info;
+
+            if (info.operation == Mips.SYSCALL ||
+                    info.operation == Mips.UNIMPL ||
+                    info.operation == Mips.INVALID)
+                break;
+        }
+
+        block = new BasicBlock(new Predecoded[length]);
+        System.arraycopy(instructions, 0, block.instructions, 0, length);
+
+        page[index] = block;
+        return block;
+    }
+
+    /**
+     * Translate a hot basic block into a chain of operations. The most common
+     * instructions get an operation with their operands already bound, which
+     * skips <tt>decode()</tt> and the generic <tt>execute()</tt> and
+     * <tt>writeBack()</tt> entirely; everything else is still interpreted.
+     *
+     * @param    block    the block to translate.
+     * @return the operations, one per instruction in the block.
+     */
+    private Operation[] compile(BasicBlock block) {
+        Operation[] operations = new Operation[block.instructions.length];
+
+        for (int i = 0; i < operations.length; i++) {
+            Predecoded info = block.instructions[i];
+
+            if (info.value == 0)
+                operations[i] = new Nop();
+            else if (info.operation == Mips.ADD && info.flags == (Mips.DST | Mips.SRC2IMM))
+                operations[i] = new AddImmediate(info.rt, info.rs, info.imm);
+            else if (info.operation == Mips.ADD && info.flags == Mips.DST)
+                operations[i] = new AddRegister(info.rd, info.rs, info.rt);
+            else if (info.operation == Mips.LOAD && info.flags == (Mips.DELAYEDLOAD | Mips.SIZEW))
+                operations[i] = new LoadWord(info.rt, info.rs, info.imm);
+            else if (info.operation == Mips.STORE && info.flags == Mips.SIZEW)
+                operations[i] = new StoreWord(info.rt, info.rs, info.imm);
+            else
+                operations[i] = new Interpreted(info);
+        }
+
+        return operations;
+    }
+
+    /**
+     * Discard the basic blocks cached for the specified physical page. Blocks
+     * that are still running notice through <tt>BasicBlock.valid</tt>.
+     *
+     * @param    ppn    the physical page whose blocks to discard.
+     */
+    private void invalidateBlocks(int ppn) {
+        BasicBlock[] page = blockCache[ppn];
+        if (page == null)
+            return;
+
+        for (int i = 0; i < page.length; i++) {
+            if (page[i] != null)
+                page[i].valid = false;
+        }
+
+        blockCache[ppn] = null;
+    }
+
+    /**
+     * Discard any decoded instructions cached for the specified physical
+     * page. Called whenever the contents of the page are replaced.
+     *
+     * @param    ppn    the physical page whose contents changed.
+     */
+    void invalidatePage(int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+        decodeCache[ppn] = null;
+        invalidateBlocks(ppn);
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -292,14 +965,14 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
             throws MipsException {
-        if (Lib.test(dbgProcessor))
+        if (debugging && Lib.test(dbgProcessor))
             System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
                     + (writing ? ", write" : ", read..."));
 
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
             Lib.debug(dbgProcessor, "\t\talignment error");
-            throw new MipsException(exceptionAddressError, vaddr);
+            throw mipsException(exceptionAddressError, vaddr);
         }
 
         // calculate virtual page number and offset from the virtual address
@@ -310,20 +983,32 @@ public final class Processor {
 
         // if not using a TLB, then the vpn is an index into the table
         if (!usingTLB) {
-            if (translations == null || vpn >= translations.length ||
-                    translations[vpn] == null ||
-                    !translations[vpn].valid) {
-                privilege.stats.numPageFaults++;
-                Lib.debug(dbgProcessor, "\t\tpage fault");
-                throw new MipsException(exceptionPageFault, vaddr);
-            }
+            int slot = vpn % translationCacheSize;
+
+            if (cachedVPNs[slot] == vpn) {
+                entry = cachedEntries[slot];
+            } else {
+                if (translations == null || vpn >= translations.length ||
+                        translations[vpn] == null ||
+                        !translations[vpn].valid) {
+                    privilege.stats.numPageFaults++;
+                    Lib.debug(dbgProcessor, "\t\tpage fault");
+                    throw mipsException(exceptionPageFault, vaddr);
+                }
 
-            entry = translations[vpn];
+                entry = translations[vpn];
+
+                cachedVPNs[slot] = vpn;
+                cachedEntries[slot] = entry;
+            }
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look through the TLB set for matching vpn and address space
         else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
+            int first = tlbSet(vpn) * tlbAssociativity;
+
+            for (int i = first; i < first + tlbAssociativity; i++) {
+                if (translations[i].valid && translations[i].vpn == vpn &&
+                        tlbASIDs[i] == asid) {
                     entry = translations[i];
                     break;
                 }
@@ -331,21 +1016,21 @@ public final class Processor {
             if (entry == null) {
                 privilege.stats.numTLBMisses++;
                 Lib.debug(dbgProcessor, "\t\tTLB miss");
-                throw new MipsException(exceptionTLBMiss, vaddr);
+                throw mipsException(exceptionTLBMiss, vaddr);
             }
         }
 
         // check if trying to write a read-only page
         if (entry.readOnly && writing) {
             Lib.debug(dbgProcessor, "\t\tread-only exception");
-            throw new MipsException(exceptionReadOnly, vaddr);
+            throw mipsException(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
         int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
             Lib.debug(dbgProcessor, "\t\tbad ppn");
-            throw new MipsException(exceptionBusError, vaddr);
+            throw mipsException(exceptionBusError, vaddr);
         }
 
         // set used and dirty bits as appropriate
@@ -355,11 +1040,21 @@ public final class Processor {
 
         int paddr = (ppn * pageSize) + offset;
 
-        if (Lib.test(dbgProcessor))
+        if (debugging && Lib.test(dbgProcessor))
             System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
         return paddr;
     }
 
+    /**
+     * Forget all cached page table lookups. The kernel can only change the
+     * page table while it is running, so this is called whenever the kernel
+     * is entered, as well as when the page table itself is replaced.
+     */
+    private void flushTranslationCache() {
+        Arrays.fill(cachedVPNs, -1);
+        Arrays.fill(cachedEntries, null);
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -370,16 +1065,29 @@ public final class Processor {
      * @exception MipsException    if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-        if (Lib.test(dbgProcessor))
+        if (debugging && Lib.test(dbgProcessor))
             System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
                     + ", size=" + size);
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-                size);
+        int paddr = translate(vaddr, size, false);
+
+        // translate() guarantees the access is aligned
+        int value;
+        switch (size) {
+            case 1:
+                value = memoryView.get(paddr);
+                break;
+            case 2:
+                value = memoryView.getShort(paddr);
+                break;
+            default:
+                value = memoryView.getInt(paddr);
+                break;
+        }
 
-        if (Lib.test(dbgProcessor))
+        if (debugging && Lib.test(dbgProcessor))
             System.out.println("\t\tvalue read=0x" +
                     Lib.toHexString(value, size * 2));
 
@@ -397,15 +1105,34 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
             throws MipsException {
-        if (Lib.test(dbgProcessor))
+        if (debugging && Lib.test(dbgProcessor))
             System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
                     + ", size=" + size + ", value=0x"
                     + Lib.toHexString(value, size * 2));
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        int paddr = translate(vaddr, size, true);
+
+        switch (size) {
+            case 1:
+                memoryView.put(paddr, (byte) value);
+                break;
+            case 2:
+                memoryView.putShort(paddr, (short) value);
+                break;
+            default:
+                memoryView.putInt(paddr, value);
+                break;
+        }
+
+        // drop the decoded copy of the word we just overwrote, if any
+        int ppn = paddr / pageSize;
+        Predecoded[] page = decodeCache[ppn];
+        if (page != null)
+            page[(paddr % pageSize) / 4] = null;
+
+        invalidateBlocks(ppn);
     }
 
     /**
@@ -508,6 +1235,27 @@ public final class Processor {
             "illegal inst "
     };
 
+    /**
+     * Performance counter: the simulated time that has passed.
+     */
+    public static final int perfCycles = 0;
+    /**
+     * Performance counter: the user instructions that completed.
+     */
+    public static final int perfInstructions = 1;
+    /**
+     * Performance counter: the TLB misses that have occurred.
+     */
+    public static final int perfTLBMisses = 2;
+    /**
+     * Performance counter: the page faults that have occurred.
+     */
+    public static final int perfPageFaults = 3;
+    /**
+     * The number of performance counters.
+     */
+    public static final int numPerfCounters = 4;
+
     /**
      * Index of return value register 0.
      */
@@ -575,6 +1323,11 @@ public final class Processor {
      */
     private Privilege privilege;
 
+    /**
+     * One exception per cause, reused every time that cause is raised.
+     */
+    private MipsException[] mipsExceptions;
+
     /**
      * MIPS registers accessible to the kernel.
      */
@@ -601,12 +1354,42 @@ public final class Processor {
      * Number of TLB entries.
      */
     private int tlbSize = 4;
+    /**
+     * Number of TLB entries in each set.
+     */
+    private int tlbAssociativity;
+    /**
+     * Number of sets in the TLB.
+     */
+    private int numTLBSets;
+    /**
+     * The address space ID each TLB entry was written with.
+     */
+    private int[] tlbASIDs;
+    /**
+     * The current address space ID.
+     */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * Number of entries in the page table lookup cache.
+     */
+    private static final int translationCacheSize = 64;
+    /**
+     * Direct-mapped cache of page table lookups, indexed by
+     * <tt>vpn % translationCacheSize</tt>. Holds entries from the current
+     * page table that were valid when they were looked up, and that the
+     * kernel has not had a chance to change since.
+     */
+    private int[] cachedVPNs = new int[translationCacheSize];
+    private TranslationEntry[] cachedEntries =
+            new TranslationEntry[translationCacheSize];
+
     /**
      * Size of a page, in bytes.
      */
@@ -620,46 +1403,135 @@ public final class Processor {
      */
     private int numPhysPages;
     /**
-     * Main memory for user programs.
+     * Main memory for user programs, or <tt>null</tt> if memory is backed by
+     * a file.
      */
-    private byte[] mainMemory;
-
+    private byte[] mainMemory = null;
     /**
-     * The kernel exception handler, called on every user exception.
+     * A little-endian view of physical memory, used to load and store whole
+     * halfwords and words at once. Wraps <tt>mainMemory</tt>, or
+     * <tt>mappedMemory</tt> if memory is backed by a file.
      */
-    private Runnable exceptionHandler = null;
-
-    private static final char dbgProcessor = 'p';
-    private static final char dbgDisassemble = 'm';
-    private static final char dbgFullDisassemble = 'M';
-
-    private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
-        public void flushPipe() {
+    private ByteBuffer memoryView;
+    /**
+     * The mapped file backing physical memory, or <tt>null</tt> if memory is
+     * backed by <tt>mainMemory</tt>.
+     */
+    private MappedByteBuffer mappedMemory = null;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. A page's array is allocated the first time code is fetched
+     * from it.
+     */
+    private Predecoded[][] decodeCache;
+    /**
+     * Basic blocks, indexed by physical page and then by the word within the
+     * page at which they start.
+     */
+    private BasicBlock[][] blockCache;
+    /**
+     * <tt>true</tt> if <tt>run()</tt> should execute whole basic blocks.
+     */
+    private boolean blockMode;
+    /**
+     * <tt>true</tt> if any of the processor's debug flags were enabled when
+     * <tt>run()</tt> started. Every debug hook on the execution path checks
+     * this first, so runs without those flags skip the <tt>Lib.test()</tt>
+     * lookups entirely.
+     */
+    private boolean debugging = false;
+    /**
+     * Counts executed instructions and faults per PC, if
+     * <tt>Processor.profile</tt> is set in <tt>nachos.conf</tt>.
+     */
+    private Profiler profiler = null;
+    /**
+     * Records a binary trace of every instruction, if
+     * <tt>Processor.traceFile</tt> is set in <tt>nachos.conf</tt>.
+     */
+    private TraceWriter tracer = null;
+    /**
+     * The number of times a basic block runs before it is compiled.
+     */
+    private int hotBlockThreshold;
+
+    /**
+     * The kernel exception handler, called on every user exception.
+     */
+    private Runnable exceptionHandler = null;
+
+    private static final char dbgProcessor = 'p';
+    private static final char dbgDisassemble = 'm';
+    private static final char dbgFullDisassemble = 'M';
+
+    private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
+        public void flushPipe() {
             finishLoad();
+
+            // an interrupt handler is about to run
+            flushTranslationCache();
         }
     }
 
+    /**
+     * Return the preallocated exception for <i>cause</i>, with no bad virtual
+     * address.
+     *
+     * @param    cause    the cause of the exception.
+     * @return the exception to throw.
+     */
+    private MipsException mipsException(int cause) {
+        MipsException e = mipsExceptions[cause];
+        e.hasBadVAddr = false;
+        return e;
+    }
+
+    /**
+     * Return the preallocated exception for <i>cause</i>, recording the
+     * virtual address that caused it. The address is copied into
+     * <tt>regBadVAddr</tt> by <tt>handle()</tt>, before the kernel can run
+     * and cause another exception.
+     *
+     * @param    cause    the cause of the exception.
+     * @param    badVAddr    the virtual address that caused the exception.
+     * @return the exception to throw.
+     */
+    private MipsException mipsException(int cause, int badVAddr) {
+        MipsException e = mipsExceptions[cause];
+        e.hasBadVAddr = true;
+        e.badVAddr = badVAddr;
+        return e;
+    }
+
     private class MipsException extends Exception {
-        public MipsException(int cause) {
+        private MipsException(int cause) {
             Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
             this.cause = cause;
         }
 
-        public MipsException(int cause, int badVAddr) {
-            this(cause);
-
-            hasBadVAddr = true;
-            this.badVAddr = badVAddr;
+        /**
+         * Skip filling in the stack trace. These exceptions are preallocated
+         * and only used for control flow, so the trace would be meaningless.
+         */
+        public Throwable fillInStackTrace() {
+            return this;
         }
 
         public void handle() {
+            flushTranslationCache();
+
             writeRegister(regCause, cause);
 
+            // the instruction will either be restarted, or never complete
+            if (cause != exceptionSyscall)
+                privilege.stats.numFaultedInstructions++;
+
             if (hasBadVAddr)
                 writeRegister(regBadVAddr, badVAddr);
 
-            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+            if (debugging &&
+                    (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble)))
                 System.out.println("exception: " + exceptionNames[cause]);
 
             finishLoad();
@@ -686,88 +1558,82 @@ public final class Processor {
             writeBack();
         }
 
+        /**
+         * Execute an instruction that has already been fetched, as part of a
+         * basic block.
+         *
+         * @param    info    the instruction at the current PC.
+         */
+        public void run(Predecoded info) throws MipsException {
+            value = info.value;
+            decoded = info;
+
+            decode();
+            execute();
+            writeBack();
+        }
+
         private boolean test(int flag) {
             return Lib.test(flag, flags);
         }
 
         private void fetch() throws MipsException {
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
+            if (debugging &&
+                    ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+                            Lib.test(dbgFullDisassemble)))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            value = readMem(registers[regPC], 4);
+            // same as readMem(), but keep the physical address for predecode()
+            if (debugging && Lib.test(dbgProcessor))
+                System.out.println("\treadMem vaddr=0x"
+                        + Lib.toHexString(registers[regPC]) + ", size=4");
+
+            int paddr = translate(registers[regPC], 4, false);
+            value = memoryView.getInt(paddr);
+
+            if (debugging && Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" +
+                        Lib.toHexString(value, 8));
+
+            decoded = predecode(paddr, value);
         }
 
         private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+            Predecoded info = decoded;
 
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
+            op = info.op;
+            rs = info.rs;
+            rt = info.rt;
+            rd = info.rd;
+            sh = info.sh;
+            func = info.func;
+            target = info.target;
+            imm = info.imm;
 
             operation = info.operation;
             name = info.name;
             format = info.format;
             flags = info.flags;
+            size = info.size;
+            dstReg = info.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + info.branchOffset;
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -788,129 +1654,25 @@ public final class Processor {
                 src2 &= 0xFFFFFFFFL;
             }
 
-            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+            if (debugging &&
+                    (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble)))
                 print();
         }
 
         private void print() {
-            if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-                    !Lib.test(dbgFullDisassemble))
+            if (debugging && Lib.test(dbgDisassemble) &&
+                    Lib.test(dbgProcessor) && !Lib.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            if (operation == Mips.INVALID) {
-                System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-                        " rs=" + Lib.toHexString(rs, 2) +
-                        " rt=" + Lib.toHexString(rt, 2) +
-                        " rd=" + Lib.toHexString(rd, 2) +
-                        " sh=" + Lib.toHexString(sh, 2) +
-                        " func=" + Lib.toHexString(func, 2) +
-                        "\n");
-                return;
-            }
-
-            int spaceIndex = name.indexOf(' ');
-            Lib.assertTrue(spaceIndex != -1 && spaceIndex == name.lastIndexOf(' '));
-
-            String instname = name.substring(0, spaceIndex);
-            char[] args = name.substring(spaceIndex + 1).toCharArray();
+            System.out.print(decoded.disassemble(jtarget,
+                    Lib.test(dbgFullDisassemble) ? registers : null));
 
-            System.out.print(instname + "\t");
-
-            int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-            for (int i = 0; i < args.length; i++) {
-                switch (args[i]) {
-                    case Mips.RS:
-                        System.out.print("$" + rs);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-
-                        if (Lib.test(dbgFullDisassemble)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rs]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-                        break;
-                    case Mips.RT:
-                        System.out.print("$" + rt);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-
-                        if (Lib.test(dbgFullDisassemble) &&
-                                (i != 0 || !test(Mips.DST)) &&
-                                !test(Mips.DELAYEDLOAD)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rt]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-                        break;
-                    case Mips.RETURNADDRESS:
-                        if (rd == 31)
-                            continue;
-                    case Mips.RD:
-                        System.out.print("$" + rd);
-                        minCharsPrinted += 2;
-                        maxCharsPrinted += 3;
-                        break;
-                    case Mips.IMM:
-                        System.out.print(imm);
-                        minCharsPrinted += 1;
-                        maxCharsPrinted += 6;
-                        break;
-                    case Mips.SHIFTAMOUNT:
-                        System.out.print(sh);
-                        minCharsPrinted += 1;
-                        maxCharsPrinted += 2;
-                        break;
-                    case Mips.ADDR:
-                        System.out.print(imm + "($" + rs);
-                        minCharsPrinted += 4;
-                        maxCharsPrinted += 5;
-
-                        if (Lib.test(dbgFullDisassemble)) {
-                            System.out.print("#0x" +
-                                    Lib.toHexString(registers[rs]));
-                            minCharsPrinted += 11;
-                            maxCharsPrinted += 11;
-                        }
-
-                        System.out.print(")");
-                        break;
-                    case Mips.TARGET:
-                        System.out.print("0x" + Lib.toHexString(jtarget));
-                        minCharsPrinted += 10;
-                        maxCharsPrinted += 10;
-                        break;
-                    default:
-                        Lib.assertTrue(false);
-                }
-                if (i + 1 < args.length) {
-                    System.out.print(", ");
-                    minCharsPrinted += 2;
-                    maxCharsPrinted += 2;
-                } else {
-                    // most separation possible is tsi, 5+1+1=7,
-                    // thankfully less than 8 (makes this possible)
-                    Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
-                    // longest string is stj, which is 40-42 chars w/ -d M;
-                    // go for 48
-                    while ((minCharsPrinted % 8) != 0) {
-                        System.out.print(" ");
-                        minCharsPrinted++;
-                        maxCharsPrinted++;
-                    }
-                    while (minCharsPrinted < 48) {
-                        System.out.print("\t");
-                        minCharsPrinted += 8;
-                    }
-                }
-            }
+            if (operation == Mips.INVALID)
+                return;
 
-            if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-                    !Lib.test(dbgFullDisassemble))
+            if (debugging && Lib.test(dbgDisassemble) &&
+                    Lib.test(dbgProcessor) && !Lib.test(dbgFullDisassemble))
                 System.out.print("\n");
         }
 
@@ -937,7 +1699,7 @@ public final class Processor {
                         if (registers[regLo] * src2 + registers[regHi] != src1)
                             throw new ArithmeticException();
                     } catch (ArithmeticException e) {
-                        throw new MipsException(exceptionOverflow);
+                        throw mipsException(exceptionOverflow);
                     }
                     break;
 
@@ -1007,7 +1769,7 @@ public final class Processor {
                     break;
 
                 case Mips.SYSCALL:
-                    throw new MipsException(exceptionSyscall);
+                    throw mipsException(exceptionSyscall);
 
                 case Mips.LOAD:
                     value = readMem(addr, size);
@@ -1077,7 +1839,7 @@ public final class Processor {
                     System.err.println("Warning: encountered unimplemented inst");
 
                 case Mips.INVALID:
-                    throw new MipsException(exceptionIllegalInstruction);
+                    throw mipsException(exceptionIllegalInstruction);
 
                 default:
                     Lib.assertNotReached();
@@ -1087,7 +1849,7 @@ public final class Processor {
         private void writeBack() throws MipsException {
             // if instruction is signed, but carry bit !+ sign bit, throw
             if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-                throw new MipsException(exceptionOverflow);
+                throw mipsException(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
                 delayedLoad(dstReg, (int) dst, mask);
@@ -1101,7 +1863,7 @@ public final class Processor {
                 registers[dstReg] = (int) dst;
 
             if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-                if (Lib.test(dbgFullDisassemble)) {
+                if (debugging && Lib.test(dbgFullDisassemble)) {
                     System.out.print("#0x" + Lib.toHexString((int) dst));
                     if (test(Mips.DELAYEDLOAD))
                         System.out.print(" (delayed load)");
@@ -1114,12 +1876,14 @@ public final class Processor {
 
             advancePC(nextPC);
 
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
+            if (debugging &&
+                    ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+                            Lib.test(dbgFullDisassemble)))
                 System.out.print("\n");
         }
 
         // state used to execute a single instruction
+        Predecoded decoded;
         int value, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
@@ -1131,6 +1895,325 @@ public final class Processor {
         boolean branch;
     }
 
+    /**
+     * The register-independent part of decoding a single instruction word.
+     * These are cached by physical address, so that instructions in a loop
+     * only need to be decoded once.
+     */
+    private static final class Predecoded {
+        Predecoded(int value) {
+            this.value = value;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
+
+            Mips info;
+            switch (op) {
+                case 0:
+                    info = Mips.specialtable[func];
+                    break;
+                case 1:
+                    info = Mips.regimmtable[rt];
+                    break;
+                default:
+                    info = Mips.optable[op];
+                    break;
+            }
+
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // branch offsets always use the sign-extended immediate
+            int signedImm = Lib.extend(value, 0, 16);
+            branchOffset = signedImm << 2;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm = signedImm & 0xFFFF;
+            else
+                imm = signedImm;
+        }
+
+        final int value, op, rs, rt, rd, sh, func, target, imm;
+        final int operation, format, flags;
+        final String name;
+
+        final int size, dstReg, branchOffset;
+
+        /**
+         * Disassemble this instruction, the same way the <tt>m</tt> and
+         * <tt>M</tt> debug flags print it.
+         *
+         * @param    jtarget    the target of this instruction, if it is a
+         * branch or jump.
+         * @param    registers    the registers before this instruction
+         * executed, whose values are printed with its operands, or
+         * <tt>null</tt> to print only the register numbers.
+         * @return the disassembled instruction.
+         */
+        String disassemble(int jtarget, int[] registers) {
+            StringBuilder text = new StringBuilder();
+
+            if (operation == Mips.INVALID) {
+                text.append("invalid: op=" + Lib.toHexString(op, 2) +
+                        " rs=" + Lib.toHexString(rs, 2) +
+                        " rt=" + Lib.toHexString(rt, 2) +
+                        " rd=" + Lib.toHexString(rd, 2) +
+                        " sh=" + Lib.toHexString(sh, 2) +
+                        " func=" + Lib.toHexString(func, 2) +
+                        "\n");
+                return text.toString();
+            }
+
+            int spaceIndex = name.indexOf(' ');
+            Lib.assertTrue(spaceIndex != -1 && spaceIndex == name.lastIndexOf(' '));
+
+            String instname = name.substring(0, spaceIndex);
+            char[] args = name.substring(spaceIndex + 1).toCharArray();
+
+            text.append(instname + "\t");
+
+            int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case Mips.RS:
+                        text.append("$" + rs);
+                        minCharsPrinted += 2;
+                        maxCharsPrinted += 3;
+
+                        if (registers != null) {
+                            text.append("#0x" +
+                                    Lib.toHexString(registers[rs]));
+                            minCharsPrinted += 11;
+                            maxCharsPrinted += 11;
+                        }
+                        break;
+                    case Mips.RT:
+                        text.append("$" + rt);
+                        minCharsPrinted += 2;
+                        maxCharsPrinted += 3;
+
+                        if (registers != null &&
+                                (i != 0 || !Lib.test(Mips.DST, flags)) &&
+                                !Lib.test(Mips.DELAYEDLOAD, flags)) {
+                            text.append("#0x" +
+                                    Lib.toHexString(registers[rt]));
+                            minCharsPrinted += 11;
+                            maxCharsPrinted += 11;
+                        }
+                        break;
+                    case Mips.RETURNADDRESS:
+                        if (rd == 31)
+                            continue;
+                    case Mips.RD:
+                        text.append("$" + rd);
+                        minCharsPrinted += 2;
+                        maxCharsPrinted += 3;
+                        break;
+                    case Mips.IMM:
+                        text.append(imm);
+                        minCharsPrinted += 1;
+                        maxCharsPrinted += 6;
+                        break;
+                    case Mips.SHIFTAMOUNT:
+                        text.append(sh);
+                        minCharsPrinted += 1;
+                        maxCharsPrinted += 2;
+                        break;
+                    case Mips.ADDR:
+                        text.append(imm + "($" + rs);
+                        minCharsPrinted += 4;
+                        maxCharsPrinted += 5;
+
+                        if (registers != null) {
+                            text.append("#0x" +
+                                    Lib.toHexString(registers[rs]));
+                            minCharsPrinted += 11;
+                            maxCharsPrinted += 11;
+                        }
+
+                        text.append(")");
+                        break;
+                    case Mips.TARGET:
+                        text.append("0x" + Lib.toHexString(jtarget));
+                        minCharsPrinted += 10;
+                        maxCharsPrinted += 10;
+                        break;
+                    default:
+                        Lib.assertTrue(false);
+                }
+                if (i + 1 < args.length) {
+                    text.append(", ");
+                    minCharsPrinted += 2;
+                    maxCharsPrinted += 2;
+                } else {
+                    // most separation possible is tsi, 5+1+1=7,
+                    // thankfully less than 8 (makes this possible)
+                    Lib.assertTrue(maxCharsPrinted - minCharsPrinted < 8);
+                    // longest string is stj, which is 40-42 chars w/ -d M;
+                    // go for 48
+                    while ((minCharsPrinted % 8) != 0) {
+                        text.append(" ");
+                        minCharsPrinted++;
+                        maxCharsPrinted++;
+                    }
+                    while (minCharsPrinted < 48) {
+                        text.append("\t");
+                        minCharsPrinted += 8;
+                    }
+                }
+            }
+
+            return text.toString();
+        }
+    }
+
+    /**
+     * A straight-line run of instructions, executed as a unit by
+     * <tt>runBlock()</tt>.
+     */
+    private static final class BasicBlock {
+        BasicBlock(Predecoded[] instructions) {
+            this.instructions = instructions;
+        }
+
+        final Predecoded[] instructions;
+        /**
+         * The compiled form of this block, or <tt>null</tt> if it hasn't run
+         * often enough yet.
+         */
+        Operation[] operations = null;
+        int executions = 0;
+        boolean valid = true;
+    }
+
+    /**
+     * A single instruction of a compiled basic block. Each one has the same
+     * effect as <tt>Instruction.run()</tt> on the instruction it replaces.
+     */
+    private abstract class Operation {
+        abstract void run(Instruction inst) throws MipsException;
+    }
+
+    private final class Interpreted extends Operation {
+        Interpreted(Predecoded info) {
+            this.info = info;
+        }
+
+        void run(Instruction inst) throws MipsException {
+            inst.run(info);
+        }
+
+        private final Predecoded info;
+    }
+
+    private final class Nop extends Operation {
+        void run(Instruction inst) {
+            finishLoad();
+            advancePC(registers[regNextPC] + 4);
+        }
+    }
+
+    private final class AddImmediate extends Operation {
+        AddImmediate(int rt, int rs, int imm) {
+            this.rt = rt;
+            this.rs = rs;
+            this.imm = imm;
+        }
+
+        void run(Instruction inst) {
+            int result = registers[rs] + imm;
+
+            finishLoad();
+            if (rt != 0)
+                registers[rt] = result;
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        private final int rt, rs, imm;
+    }
+
+    private final class AddRegister extends Operation {
+        AddRegister(int rd, int rs, int rt) {
+            this.rd = rd;
+            this.rs = rs;
+            this.rt = rt;
+        }
+
+        void run(Instruction inst) {
+            int result = registers[rs] + registers[rt];
+
+            finishLoad();
+            if (rd != 0)
+                registers[rd] = result;
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        private final int rd, rs, rt;
+    }
+
+    private final class LoadWord extends Operation {
+        LoadWord(int rt, int rs, int imm) {
+            this.rt = rt;
+            this.rs = rs;
+            this.imm = imm;
+        }
+
+        void run(Instruction inst) throws MipsException {
+            int value = readMem(registers[rs] + imm, 4);
+
+            delayedLoad(rt, value, 0xFFFFFFFF);
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        private final int rt, rs, imm;
+    }
+
+    private final class StoreWord extends Operation {
+        StoreWord(int rt, int rs, int imm) {
+            this.rt = rt;
+            this.rs = rs;
+            this.imm = imm;
+        }
+
+        void run(Instruction inst) throws MipsException {
+            writeMem(registers[rs] + imm, 4, registers[rt]);
+
+            finishLoad();
+            advancePC(registers[regNextPC] + 4);
+        }
+
+        private final int rt, rs, imm;
+    }
+
     private static class Mips {
         Mips() {
         }
@@ -0,0 +1,429 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An exact profiler for user programs, driven by the <tt>Processor</tt>.
+ * It counts the instructions executed at each PC, the basic blocks they
+ * belong to, and the exceptions they raise. When Nachos exits, it prints a
+ * report of the hottest instructions, blocks and faults, and writes a flat
+ * binary profile to a file in the test directory.
+ *
+ * <p>
+ * A basic block here is a dynamic one: a block starts at every instruction
+ * that is not reached by falling through from the instruction before it,
+ * and ends at the next such instruction.
+ *
+ * <p>
+ * Every user process maps its code at the same virtual addresses, so the
+ * counters are kept separately for each address space. An address space is
+ * identified by the current ASID on a processor with a TLB, and by the
+ * current page table otherwise, and is numbered in the order it first runs
+ * an instruction. Executables are bound to address spaces in the order they
+ * were loaded: the first new address space to run is taken to be the oldest
+ * executable loaded but not yet bound, which is how a kernel that loads a
+ * program and then forks its thread behaves. An executable that is closed
+ * before it runs is forgotten. PCs are then resolved to
+ * <tt>program:section+offset</tt> using only the sections of the executable
+ * bound to their address space.
+ *
+ * <p>
+ * The binary profile is a sequence of big-endian values: the magic number
+ * <tt>0x4E505246</tt>, the format version, the number of address spaces,
+ * and for each one its number and the name of its executable (in the
+ * modified UTF-8 of <tt>DataOutput.writeUTF()</tt>, empty if unknown); then
+ * the number of records, and for each PC that was executed or faulted in
+ * an address space, the address space number, the PC, and one
+ * <tt>long</tt> for each counter, in the order instructions, block entries,
+ * block instructions, TLB misses, page faults.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler, and arrange for it to report when Nachos
+     * exits.
+     *
+     * @param    privilege    encapsulates privileged access to the Nachos
+     * machine.
+     */
+    Profiler(Privilege privilege) {
+        this.privilege = privilege;
+
+        fileName = Config.getString("Processor.profileFile", "nachos.prof");
+        reportLength = Config.getInteger("Processor.profileReportLength", 20);
+
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                report();
+                writeProfile();
+            }
+        });
+    }
+
+    /**
+     * Record that the instruction at <i>pc</i> completed.
+     *
+     * @param    pc    the virtual address of the instruction.
+     */
+    void instruction(int pc) {
+        if (pc != lastPC + 4)
+            blockPC = pc;
+
+        count(pc, INSTRUCTIONS);
+        count(blockPC, BLOCK_INSTRUCTIONS);
+        if (blockPC == pc)
+            count(pc, BLOCK_ENTRIES);
+
+        lastPC = pc;
+    }
+
+    /**
+     * Record that the instruction at <i>pc</i> raised an exception. A TLB
+     * miss or page fault is charged to <i>pc</i>; any exception ends the
+     * current basic block. A syscall completes by raising its exception, so
+     * it is also counted as executed.
+     *
+     * @param    pc    the virtual address of the instruction.
+     * @param    cause    the cause of the exception.
+     */
+    void exception(int pc, int cause) {
+        if (cause == Processor.exceptionSyscall)
+            instruction(pc);
+        else if (cause == Processor.exceptionTLBMiss)
+            count(pc, TLB_MISSES);
+        else if (cause == Processor.exceptionPageFault)
+            count(pc, PAGE_FAULTS);
+
+        // the handler may resume anywhere, so don't merge across it
+        lastPC = -1;
+    }
+
+    /**
+     * Record that the processor switched address spaces. Counters are kept
+     * separately for each address space.
+     *
+     * @param    key    identifies the new address space: the ASID on a
+     * processor with a TLB, or the page table otherwise.
+     */
+    void switchSpace(Object key) {
+        spaceKey = key;
+        space = -1;
+        lastVPN = -1;
+        lastPC = -1;
+    }
+
+    /**
+     * Remember the sections of a COFF executable, so that PCs within them
+     * can be named in the report. The executable is bound to the next new
+     * address space to run.
+     *
+     * @param    program    the name of the executable.
+     * @param    coff    the loaded executable.
+     */
+    void addSections(String program, Coff coff) {
+        Executable executable = new Executable(program, coff);
+
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            executable.sections.add(new Section(section.getName(),
+                    section.getFirstVPN() * Processor.pageSize,
+                    section.getLength() * Processor.pageSize));
+        }
+
+        unbound.add(executable);
+    }
+
+    /**
+     * Forget a COFF executable if it was closed before it ran.
+     *
+     * @param    coff    the executable being closed.
+     */
+    void removeSections(Coff coff) {
+        for (int i = 0; i < unbound.size(); i++) {
+            if (unbound.get(i).coff == coff) {
+                unbound.remove(i);
+                return;
+            }
+        }
+    }
+
+    private void count(int pc, int counter) {
+        int vpn = Processor.pageFromAddress(pc);
+
+        if (space < 0) {
+            Integer id = spaceIds.get(spaceKey);
+            if (id == null) {
+                id = spaces.size();
+                spaceIds.put(spaceKey, id);
+                spaces.add(unbound.isEmpty() ? null : unbound.remove(0));
+            }
+            space = id;
+        }
+
+        if (vpn != lastVPN) {
+            long key = ((long) space << 32) | (vpn & 0xFFFFFFFFL);
+            lastPage = pages.get(key);
+            if (lastPage == null) {
+                lastPage = new long[wordsPerPage * numCounters];
+                pages.put(key, lastPage);
+            }
+            lastVPN = vpn;
+        }
+
+        lastPage[(Processor.offsetFromAddress(pc) / 4) * numCounters +
+                counter]++;
+    }
+
+    /**
+     * Return every PC with a non-zero counter, in ascending order of address
+     * space and then PC.
+     */
+    private Record[] records() {
+        ArrayList<Record> records = new ArrayList<Record>();
+
+        for (Long key : pages.keySet()) {
+            int space = (int) (key >>> 32);
+            int vpn = (int) (long) key;
+            long[] page = pages.get(key);
+            for (int word = 0; word < wordsPerPage; word++) {
+                long[] counters = Arrays.copyOfRange(page,
+                        word * numCounters, (word + 1) * numCounters);
+
+                boolean used = false;
+                for (int i = 0; i < numCounters; i++)
+                    used |= (counters[i] != 0);
+
+                if (used)
+                    records.add(new Record(space,
+                            Processor.makeAddress(vpn, word * 4), counters));
+            }
+        }
+
+        Record[] result = records.toArray(new Record[records.size()]);
+        Arrays.sort(result, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                if (a.space != b.space)
+                    return Integer.compare(a.space, b.space);
+                return Long.compare(a.pc & 0xFFFFFFFFL, b.pc & 0xFFFFFFFFL);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Print the hottest instructions, blocks and faulting instructions.
+     */
+    private void report() {
+        Record[] records = records();
+
+        long[] totals = new long[numCounters];
+        for (Record r : records)
+            for (int i = 0; i < numCounters; i++)
+                totals[i] += r.counters[i];
+
+        System.out.println();
+        System.out.println("Profile: instructions " + totals[INSTRUCTIONS]
+                + ", blocks " + totals[BLOCK_ENTRIES]
+                + ", TLB misses " + totals[TLB_MISSES]
+                + ", page faults " + totals[PAGE_FAULTS]);
+
+        reportTop("Hot instructions", records, INSTRUCTIONS,
+                totals[INSTRUCTIONS]);
+        reportTop("Hot blocks (instructions executed)", records,
+                BLOCK_INSTRUCTIONS, totals[INSTRUCTIONS]);
+        reportTop("TLB misses", records, TLB_MISSES, totals[TLB_MISSES]);
+        reportTop("Page faults", records, PAGE_FAULTS, totals[PAGE_FAULTS]);
+    }
+
+    private void reportTop(String title, Record[] records, final int counter,
+                           long total) {
+        if (total == 0)
+            return;
+
+        Record[] sorted = records.clone();
+        Arrays.sort(sorted, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return Long.compare(b.counters[counter], a.counters[counter]);
+            }
+        });
+
+        System.out.println();
+        System.out.println(title + ":");
+
+        for (int i = 0; i < sorted.length && i < reportLength; i++) {
+            long count = sorted[i].counters[counter];
+            if (count == 0)
+                break;
+
+            String line = "  " + pad(Long.toString(count), 12) + " "
+                    + pad(Long.toString(count * 100 / total) + "%", 4)
+                    + "  0x" + Lib.toHexString(sorted[i].pc)
+                    + "  " + locate(sorted[i].space, sorted[i].pc);
+
+            if (counter == BLOCK_INSTRUCTIONS)
+                line += " (entered " + sorted[i].counters[BLOCK_ENTRIES]
+                        + " times)";
+
+            System.out.println(line);
+        }
+    }
+
+    private static String pad(String s, int width) {
+        while (s.length() < width)
+            s = " " + s;
+        return s;
+    }
+
+    /**
+     * Name the section containing <i>pc</i> in the executable bound to
+     * address space <i>space</i>.
+     */
+    private String locate(int space, int pc) {
+        Executable executable = spaces.get(space);
+        if (executable == null)
+            return "[" + space + "]?";
+
+        String program = executable.program + "[" + space + "]";
+        long address = pc & 0xFFFFFFFFL;
+
+        for (Section section : executable.sections) {
+            if (address >= section.start &&
+                    address < section.start + section.length) {
+                return program + ":" + section.name + "+0x"
+                        + Integer.toHexString((int) (address - section.start));
+            }
+        }
+
+        return program + ":?";
+    }
+
+    /**
+     * Write the flat binary profile to the test directory.
+     */
+    private void writeProfile() {
+        final Record[] records = records();
+
+        try {
+            privilege.doPrivileged(new PrivilegedExceptionAction<Void>() {
+                public Void run() throws IOException {
+                    File file = new File(Machine.testDirectory(), fileName);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(
+                                    new FileOutputStream(file)));
+                    try {
+                        out.writeInt(profileMagic);
+                        out.writeInt(profileVersion);
+
+                        out.writeInt(spaces.size());
+                        for (int i = 0; i < spaces.size(); i++) {
+                            out.writeInt(i);
+                            out.writeUTF(spaces.get(i) == null ?
+                                    "" : spaces.get(i).program);
+                        }
+
+                        out.writeInt(records.length);
+                        for (Record r : records) {
+                            out.writeInt(r.space);
+                            out.writeInt(r.pc);
+                            for (int i = 0; i < numCounters; i++)
+                                out.writeLong(r.counters[i]);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    return null;
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            System.out.println("unable to write profile: " + e.getException());
+        }
+    }
+
+    private static class Record {
+        Record(int space, int pc, long[] counters) {
+            this.space = space;
+            this.pc = pc;
+            this.counters = counters;
+        }
+
+        int space;
+        int pc;
+        long[] counters;
+    }
+
+    private static class Executable {
+        Executable(String program, Coff coff) {
+            this.program = program;
+            this.coff = coff;
+        }
+
+        String program;
+        Coff coff;
+        ArrayList<Section> sections = new ArrayList<Section>();
+    }
+
+    private static class Section {
+        Section(String name, long start, long length) {
+            this.name = name;
+            this.start = start;
+            this.length = length;
+        }
+
+        String name;
+        long start, length;
+    }
+
+    private static final int INSTRUCTIONS = 0;
+    private static final int BLOCK_ENTRIES = 1;
+    private static final int BLOCK_INSTRUCTIONS = 2;
+    private static final int TLB_MISSES = 3;
+    private static final int PAGE_FAULTS = 4;
+    private static final int numCounters = 5;
+
+    private static final int wordsPerPage = Processor.pageSize / 4;
+
+    private static final int profileMagic = 0x4E505246;
+    private static final int profileVersion = 2;
+
+    private Privilege privilege;
+    private String fileName;
+    private int reportLength;
+
+    /**
+     * Address space numbers, keyed by ASID or page table, and the executable
+     * bound to each address space, or <tt>null</tt> if none was loaded. The
+     * current address space is numbered when it first counts something.
+     */
+    private HashMap<Object, Integer> spaceIds = new HashMap<Object, Integer>();
+    private ArrayList<Executable> spaces = new ArrayList<Executable>();
+    private Object spaceKey = null;
+    private int space = -1;
+
+    /**
+     * Counters for each page of each address space, keyed by the address
+     * space number in the high word and the VPN in the low word,
+     * <tt>numCounters</tt> per word.
+     */
+    private HashMap<Long, long[]> pages = new HashMap<Long, long[]>();
+    private int lastVPN = -1;
+    private long[] lastPage = null;
+
+    private int lastPC = -1;
+    private int blockPC = -1;
+
+    /** Executables loaded but not yet bound to an address space. */
+    private ArrayList<Executable> unbound = new ArrayList<Executable>();
+}
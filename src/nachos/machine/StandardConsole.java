@@ -5,9 +5,16 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * Input is read by a host thread, from <tt>waitForInput()</tt>, which posts
+ * a receive interrupt as each byte arrives, so nothing polls for input while
+ * the console is quiet. Once the kernel reads a byte, the next one is not
+ * delivered until <tt>Stats.ConsoleTime</tt> ticks later.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -27,12 +34,19 @@ public class StandardConsole implements SerialConsole {
             }
         };
 
+        inputPosted = new Runnable() {
+            public void run() {
+                inputPosted();
+            }
+        };
+
         sendInterrupt = new Runnable() {
             public void run() {
                 sendInterrupt();
             }
         };
 
+        // give the kernel time to install its handlers before the first byte
         scheduleReceiveInterrupt();
     }
 
@@ -40,29 +54,70 @@ public class StandardConsole implements SerialConsole {
                                            Runnable sendInterruptHandler) {
         this.receiveInterruptHandler = receiveInterruptHandler;
         this.sendInterruptHandler = sendInterruptHandler;
+
+        if (readThread == null)
+            startReader();
+    }
+
+    /**
+     * Start the reader thread. This waits until the kernel installs its
+     * handlers, rather than happening in the constructor, so that a subclass
+     * is fully constructed before its <tt>waitForInput()</tt> is first
+     * called.
+     */
+    private void startReader() {
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                readThread = new Thread(new Runnable() {
+                    public void run() {
+                        readLoop();
+                    }
+                }, "console reader");
+
+                readThread.setDaemon(true);
+                readThread.start();
+            }
+        });
     }
 
     private void scheduleReceiveInterrupt() {
         privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
                 receiveInterrupt);
+        receiveScheduled = true;
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
+     * Read a byte from the object backing this console, waiting until one is
+     * available. This is only ever called by the console's reader thread, a
+     * host thread of its own, so it may block; a subclass that supplies
+     * input some other way overrides this. It replaces the old non-blocking
+     * <tt>in()</tt>, which the console no longer polls.
      *
-     * @return the byte read, or -1 of no data is available.
+     * @return the byte read, or -1 if there is no more input.
      */
-    protected int in() {
+    protected int waitForInput() {
         try {
-            if (System.in.available() <= 0)
-                return -1;
-
             return System.in.read();
         } catch (IOException e) {
             return -1;
         }
     }
 
+    /**
+     * The body of the reader thread. Hands each byte to the Nachos side, and
+     * posts an interrupt to have it delivered.
+     */
+    private void readLoop() {
+        while (true) {
+            int c = waitForInput();
+            if (c == -1)
+                return;
+
+            hostInput.add(c);
+            privilege.interrupt.post("console input", inputPosted);
+        }
+    }
+
     private int translateCharacter(int c) {
         // translate win32 0x0D 0x0A sequence to single newline
         if (c == 0x0A && prevCarriageReturn) {
@@ -92,10 +147,31 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
         Lib.assertTrue(incomingKey == -1);
 
-        incomingKey = translateCharacter(in());
-        if (incomingKey == -1) {
-            scheduleReceiveInterrupt();
-        } else {
+        receiveScheduled = false;
+        receive();
+    }
+
+    private void inputPosted() {
+        // a key is waiting to be read, or the next one isn't due yet
+        if (incomingKey != -1 || receiveScheduled)
+            return;
+
+        receive();
+    }
+
+    /**
+     * Deliver the next byte from the reader thread, if there is one.
+     * Otherwise, the reader thread will post an interrupt when one arrives.
+     */
+    private void receive() {
+        Integer c;
+        while ((c = hostInput.poll()) != null) {
+            incomingKey = translateCharacter(c);
+            if (incomingKey != -1)
+                break;
+        }
+
+        if (incomingKey != -1) {
             privilege.stats.numConsoleReads++;
 
             if (receiveInterruptHandler != null)
@@ -151,11 +227,21 @@ public class StandardConsole implements SerialConsole {
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
+    private Runnable inputPosted;
     private Runnable sendInterrupt;
 
+    private Thread readThread = null;
+
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
+    /**
+     * Bytes read by the reader thread, not yet delivered.
+     */
+    private ConcurrentLinkedQueue<Integer> hostInput =
+            new ConcurrentLinkedQueue<Integer>();
+    private boolean receiveScheduled = false;
+
     private int incomingKey = -1;
     private int outgoingKey = -1;
 
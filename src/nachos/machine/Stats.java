@@ -69,6 +69,12 @@ public final class Stats {
      * The total number of TLB misses that have occurred.
      */
     public int numTLBMisses = 0;
+    /**
+     * The total number of user instructions that raised an exception other
+     * than a syscall, and so did not complete. Each of these still took a
+     * user tick.
+     */
+    public long numFaultedInstructions = 0;
     /**
      * The total number of packets Nachos has sent to the network.
      */
@@ -3,6 +3,9 @@
 package nachos.machine;
 
 import nachos.security.*;
+import nachos.ag.AutoGrader;
+
+import java.lang.reflect.Method;
 
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
@@ -13,6 +16,15 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The autograder is told about each timer interrupt by a second interrupt,
+ * one tick after the first. If <tt>Timer.coalesceAutoGrader</tt> is set, it
+ * is told directly, just before the timer interrupt handler is called, so
+ * that each timer interrupt is dispatched only once. The handler may switch
+ * threads, so the autograder is still told before any other thread runs.
+ * That is only suitable for autograders that don't depend on the extra
+ * tick.
  */
 public final class Timer {
     /**
@@ -26,6 +38,9 @@ public final class Timer {
 
         this.privilege = privilege;
 
+        coalesceAutoGrader = Config.getBoolean("Timer.coalesceAutoGrader",
+                false);
+
         timerInterrupt = new Runnable() {
             public void run() {
                 timerInterrupt();
@@ -63,10 +78,15 @@ public final class Timer {
 
     private void timerInterrupt() {
         scheduleInterrupt();
-        scheduleAutoGraderInterrupt();
+        if (!coalesceAutoGrader)
+            scheduleAutoGraderInterrupt();
 
         lastTimerInterrupt = getTime();
 
+        // before the handler, which may switch threads
+        if (coalesceAutoGrader)
+            autoGraderInterrupt.run();
+
         if (handler != null)
             handler.run();
     }
@@ -75,14 +95,55 @@ public final class Timer {
         int delay = Stats.TimerTicks;
         delay += Lib.random(delay / 10) - (delay / 20);
 
-        privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+        schedule(delay, "timer", timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
-        privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+        schedule(1, "timerAG", autoGraderInterrupt);
+    }
+
+    /**
+     * Schedule one of the timer's interrupts. They are timer interrupts, which
+     * <tt>Interrupt.idle()</tt> need not wait for, unless the autograder
+     * watches them; then they have to occur on time even while the kernel
+     * is idle.
+     */
+    private void schedule(long when, String type, Runnable handler) {
+        if (autoGraderWatchesTimer())
+            privilege.interrupt.schedule(when, type, handler);
+        else
+            privilege.interrupt.scheduleTimer(when, type, handler);
+    }
+
+    /**
+     * Test whether the autograder overrides
+     * <tt>AutoGrader.timerInterrupt()</tt>. Until there is an autograder,
+     * assume that it does.
+     */
+    private boolean autoGraderWatchesTimer() {
+        if (autoGraderChecked)
+            return autoGraderWatches;
+
+        AutoGrader autoGrader = Machine.autoGrader();
+        if (autoGrader == null)
+            return true;
+
+        try {
+            Method method = autoGrader.getClass().getMethod("timerInterrupt",
+                    Privilege.class, long.class);
+            autoGraderWatches = (method.getDeclaringClass() != AutoGrader.class);
+        } catch (NoSuchMethodException e) {
+            autoGraderWatches = true;
+        }
+
+        autoGraderChecked = true;
+        return autoGraderWatches;
     }
 
     private long lastTimerInterrupt;
+    private boolean coalesceAutoGrader;
+    private boolean autoGraderChecked = false;
+    private boolean autoGraderWatches;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
 
@@ -0,0 +1,120 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Prints a trace recorded by setting <tt>Processor.traceFile</tt>. Each
+ * instruction is disassembled the way the <tt>M</tt> debug flag prints it,
+ * with the values its source registers held, followed by the address it
+ * accessed if it is a load or store. Run it as:
+ *
+ * <pre>
+ * java nachos.machine.TraceDecoder <i>tracefile</i>
+ * </pre>
+ *
+ * @see    TraceWriter
+ */
+public final class TraceDecoder {
+    private TraceDecoder() {
+    }
+
+    /**
+     * Print the trace in the file named by the only argument.
+     *
+     * @param    args    the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: java nachos.machine.TraceDecoder "
+                    + "<tracefile>");
+            System.exit(1);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(args[0])));
+
+        try {
+            if (in.readInt() != TraceWriter.traceMagic ||
+                    in.readInt() != TraceWriter.traceVersion)
+                throw new IOException("not a trace file: " + args[0]);
+
+            int[] registers = new int[Processor.numUserRegisters];
+            Inflater inflater = new Inflater();
+
+            while (true) {
+                int rawLength;
+                try {
+                    rawLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                byte[] compressed = new byte[in.readInt()];
+                in.readFully(compressed);
+
+                byte[] raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(compressed);
+                try {
+                    if (inflater.inflate(raw) != rawLength)
+                        throw new IOException("truncated trace block");
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupt trace block: " + e);
+                }
+
+                printBlock(ByteBuffer.wrap(raw), registers);
+            }
+
+            inflater.end();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void printBlock(ByteBuffer block, int[] registers)
+            throws IOException {
+        while (block.hasRemaining()) {
+            byte tag = block.get();
+            int pc;
+
+            switch (tag) {
+                case TraceWriter.TAG_REGISTER:
+                    int register = block.get();
+                    registers[register] = block.getInt();
+                    break;
+
+                case TraceWriter.TAG_INSTRUCTION:
+                    pc = block.getInt();
+                    int value = block.getInt();
+
+                    String line = "PC=0x" + Lib.toHexString(pc) + "\t" +
+                            Processor.disassemble(pc, value, registers);
+
+                    if (Processor.isMemoryAccess(value))
+                        line += "[0x" + Lib.toHexString(block.getInt()) + "]";
+
+                    System.out.println(line);
+                    break;
+
+                case TraceWriter.TAG_EXCEPTION:
+                    pc = block.getInt();
+                    int cause = block.get();
+                    System.out.println("PC=0x" + Lib.toHexString(pc) +
+                            "\texception: " + Processor.exceptionNames[cause]);
+                    break;
+
+                default:
+                    throw new IOException("bad trace record: " + tag);
+            }
+        }
+    }
+}
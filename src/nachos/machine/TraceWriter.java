@@ -0,0 +1,289 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Records a binary trace of the instructions run by the <tt>Processor</tt>.
+ * The trace is collected in fixed-size blocks, which a background thread
+ * compresses and writes to a file in the test directory. Only a bounded
+ * number of blocks exist; if the writer falls behind, the processor waits
+ * for a free block rather than using more memory.
+ *
+ * <p>
+ * The file starts with the magic number <tt>0x4E545243</tt> and the format
+ * version, followed by the blocks. Each block is its uncompressed length,
+ * its compressed length, and its contents compressed with
+ * <tt>Deflater</tt>. Uncompressed, a block is a sequence of records, each
+ * starting with a tag byte:
+ * <ul>
+ * <li><tt>TAG_REGISTER</tt>, a register number byte and its new value. Sent
+ * before an instruction for every register, other than the PC registers,
+ * that changed since the last instruction.
+ * <li><tt>TAG_INSTRUCTION</tt>, the PC and the instruction word, followed
+ * by the virtual address accessed if it is a load or store. Sent once the
+ * instruction completes.
+ * <li><tt>TAG_EXCEPTION</tt>, the PC and a cause byte. Sent instead when the
+ * instruction raises an exception.
+ * </ul>
+ * All values are big-endian. <tt>TraceDecoder</tt> prints a trace.
+ */
+final class TraceWriter {
+    /**
+     * Allocate a new trace writer, and start its background thread.
+     *
+     * @param    privilege    encapsulates privileged access to the Nachos
+     * machine.
+     * @param    fileName    the name of the trace file in the test directory.
+     */
+    TraceWriter(Privilege privilege, final String fileName) {
+        int numBlocks = Config.getInteger("Processor.traceBlocks", 8);
+        Lib.assertTrue(numBlocks > 0);
+
+        free = new ArrayBlockingQueue<ByteBuffer>(numBlocks);
+        full = new ArrayBlockingQueue<ByteBuffer>(numBlocks + 1);
+        for (int i = 0; i < numBlocks; i++)
+            free.add(ByteBuffer.allocate(blockSize));
+
+        try {
+            channel = (FileChannel) privilege.doPrivileged(
+                    new PrivilegedExceptionAction<FileChannel>() {
+                        public FileChannel run() throws IOException {
+                            File file = new File(Machine.testDirectory(),
+                                    fileName);
+                            return new FileOutputStream(file).getChannel();
+                        }
+                    });
+
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(traceMagic);
+            header.putInt(traceVersion);
+            header.flip();
+            writeFully(header);
+        } catch (PrivilegedActionException e) {
+            Lib.assertNotReached("unable to create trace file: " +
+                    e.getException());
+        } catch (IOException e) {
+            Lib.assertNotReached("unable to write trace file: " + e);
+        }
+
+        block = takeBlock(free);
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "trace writer");
+
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                writerThread.setDaemon(true);
+                writerThread.start();
+            }
+        });
+
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Record the registers that changed since the last instruction. Called
+     * before each instruction runs.
+     *
+     * @param    registers    the processor's registers.
+     */
+    void registers(int[] registers) {
+        for (int i = 0; i < Processor.numUserRegisters; i++) {
+            if (registers[i] == shadow[i] || i == Processor.regPC ||
+                    i == Processor.regNextPC)
+                continue;
+
+            reserve(6);
+            block.put(TAG_REGISTER);
+            block.put((byte) i);
+            block.putInt(registers[i]);
+
+            shadow[i] = registers[i];
+        }
+    }
+
+    /**
+     * Record an instruction that completed.
+     *
+     * @param    pc    the address of the instruction.
+     * @param    value    the instruction word.
+     * @param    memory    <tt>true</tt> if the instruction is a load or
+     * store.
+     * @param    vaddr    the virtual address the instruction accessed, if it
+     * is a load or store.
+     */
+    void instruction(int pc, int value, boolean memory, int vaddr) {
+        reserve(13);
+        block.put(TAG_INSTRUCTION);
+        block.putInt(pc);
+        block.putInt(value);
+        if (memory)
+            block.putInt(vaddr);
+    }
+
+    /**
+     * Record an instruction that raised an exception.
+     *
+     * @param    pc    the address of the instruction.
+     * @param    cause    the cause of the exception.
+     */
+    void exception(int pc, int cause) {
+        reserve(6);
+        block.put(TAG_EXCEPTION);
+        block.putInt(pc);
+        block.put((byte) cause);
+    }
+
+    private void reserve(int length) {
+        if (block.remaining() < length) {
+            block.flip();
+            putBlock(block);
+            block = takeBlock(free);
+        }
+    }
+
+    /**
+     * Hand the last partial block to the writer, and wait for everything to
+     * reach the file.
+     */
+    private void close() {
+        block.flip();
+        putBlock(block);
+        block = null;
+
+        putBlock(endOfTrace);
+
+        while (true) {
+            try {
+                writerThread.join();
+                break;
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * The body of the writer thread. Compresses and writes each full block,
+     * then returns it to the free list.
+     */
+    private void writeLoop() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] compressed = new byte[blockSize + blockSize / 8 + 64];
+        boolean failed = false;
+
+        while (true) {
+            ByteBuffer full = takeBlock(this.full);
+            if (full == endOfTrace)
+                break;
+
+            // keep draining after an error, so the processor never stalls
+            if (!failed && full.remaining() > 0) {
+                deflater.reset();
+                deflater.setInput(full.array(), 0, full.remaining());
+                deflater.finish();
+
+                int length = 0;
+                while (!deflater.finished())
+                    length += deflater.deflate(compressed, length,
+                            compressed.length - length);
+
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(full.remaining());
+                header.putInt(length);
+                header.flip();
+
+                try {
+                    writeFully(header);
+                    writeFully(ByteBuffer.wrap(compressed, 0, length));
+                } catch (IOException e) {
+                    System.out.println("trace write failed: " + e);
+                    failed = true;
+                }
+            }
+
+            full.clear();
+            free.add(full);
+        }
+
+        deflater.end();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void putBlock(ByteBuffer buffer) {
+        while (true) {
+            try {
+                full.put(buffer);
+                return;
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static ByteBuffer takeBlock(ArrayBlockingQueue<ByteBuffer> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    static final byte TAG_REGISTER = 1;
+    static final byte TAG_INSTRUCTION = 2;
+    static final byte TAG_EXCEPTION = 3;
+
+    static final int traceMagic = 0x4E545243;
+    static final int traceVersion = 1;
+
+    private static final int blockSize = 0x10000;
+
+    /**
+     * Put on the full queue, after the last block, to stop the writer.
+     */
+    private static final ByteBuffer endOfTrace = ByteBuffer.allocate(0);
+
+    private FileChannel channel;
+    private Thread writerThread;
+
+    /**
+     * Blocks waiting to be filled, and blocks waiting to be written.
+     */
+    private ArrayBlockingQueue<ByteBuffer> free, full;
+    /**
+     * The block currently being filled.
+     */
+    private ByteBuffer block;
+
+    /**
+     * The register values last sent in the trace.
+     */
+    private int[] shadow = new int[Processor.numUserRegisters];
+}
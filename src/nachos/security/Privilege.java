@@ -159,6 +159,30 @@ public abstract class Privilege {
          */
         public void schedule(long when, String type, Runnable handler);
 
+        /**
+         * Schedule a timer interrupt. This is the same as
+         * <tt>schedule()</tt>, except that <tt>Interrupt.idle()</tt> doesn't
+         * wait for the interrupt if the kernel has no use for it.
+         *
+         * @param    when    the number of ticks until the interrupt should
+         * occur.
+         * @param    type    a name for the type of interrupt being
+         * scheduled.
+         * @param    handler    the interrupt handler to call.
+         */
+        public void scheduleTimer(long when, String type, Runnable handler);
+
+        /**
+         * Post an interrupt from a host thread other than the one running
+         * Nachos, such as one reading input for a device. The handler is
+         * called at the next tick. Unlike the other methods here, this one
+         * may be called from any thread.
+         *
+         * @param    type    a name for the type of interrupt being posted.
+         * @param    handler    the interrupt handler to call.
+         */
+        public void post(String type, Runnable handler);
+
         /**
          * Advance the simulated time.
          *
@@ -167,6 +191,29 @@ public abstract class Privilege {
          *                     MIPS user code.
          */
         public void tick(boolean inKernelMode);
+
+        /**
+         * Return the number of consecutive calls to <tt>tick(false)</tt>
+         * that are guaranteed not to invoke any interrupt handler, given the
+         * interrupts that are currently pending.
+         *
+         * @return the number of user ticks that can pass before the next
+         * interrupt is due, or <tt>Integer.MAX_VALUE</tt> if there are more
+         * than that.
+         */
+        public int userTicksUntilDue();
+
+        /**
+         * Advance the simulated time by <i>count</i> user ticks at once. This
+         * has the same effect as calling <tt>tick(false)</tt> <i>count</i>
+         * times, and so <i>count</i> must not exceed what
+         * <tt>userTicksUntilDue()</tt> returned when the ticks were counted.
+         * An interrupt posted since then does not invalidate them; it occurs
+         * at the next call to <tt>tick()</tt>.
+         *
+         * @param    count    the number of user ticks to advance.
+         */
+        public void advanceUserTicks(int count);
     }
 
     /**
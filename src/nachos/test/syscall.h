@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallGetPerf		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +258,26 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Performance counters, for use with getperf(). Each counts only while the
+ * calling process is running.
+ */
+#define perfCycles		0	/* simulated time */
+#define perfInstructions	1	/* user instructions completed */
+#define perfTLBMisses		2	/* TLB misses */
+#define perfPageFaults		3	/* page faults */
+#define numPerfCounters		4
+
+/**
+ * Copy the first count performance counters of the current process into the
+ * array at counters. Each counter is 64 bits, stored as two words, low word
+ * first: counter i is in counters[2*i] and counters[2*i+1].
+ *
+ * Returns the number of counters copied, which may be less than count if the
+ * kernel has fewer, or -1 if an error occurred.
+ */
+int getperf(unsigned int *counters, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -28,9 +28,14 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes any sleeping
+     * threads that are due, and lets the scheduler account for the current
+     * thread. If the scheduler preempts it, the current thread then yields,
+     * forcing a context switch if there is another thread that should be
+     * run. The yield happens inside the handler, while the interrupt is
+     * still being dispatched, but only once the sleeping threads and the
+     * scheduler are both up to date; the rest of the dispatch runs when the
+     * thread is switched back.
      */
     public void timerInterrupt() {
         boolean preState = Machine.interrupt().disable();
@@ -42,7 +47,21 @@ public class Alarm {
                 x.thread.ready();
             }
         }
+        boolean preempt = ThreadedKernel.scheduler.timerInterrupt();
         Machine.interrupt().restore(preState);
+
+        // everything above is consistent, so it's safe to switch threads
+        if (preempt)
+            KThread.yield();
+    }
+
+    /**
+     * Test whether any thread is sleeping in <tt>waitUntil()</tt>.
+     *
+     * @return    <tt>true</tt> if a thread is waiting for the alarm.
+     */
+    public static boolean hasWaitingThreads() {
+        return !waitForAlarmThreadList.isEmpty();
     }
 
     /**
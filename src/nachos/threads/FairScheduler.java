@@ -0,0 +1,447 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the CPU fairly, in proportion to weights.
+ *
+ * <p>
+ * Every thread has a priority from <tt>priorityMinimum</tt> to
+ * <tt>priorityMaximum</tt>, and a weight derived from it: a thread at
+ * <tt>priorityDefault</tt> has weight <tt>weightDefault</tt>, and each
+ * priority above or below that multiplies or divides the weight by 1.25.
+ * Each thread also has a <i>virtual runtime</i>, which advances as the thread
+ * runs, by the ticks it runs scaled inversely to its weight. The next thread
+ * to be dequeued is always the one with the lowest virtual runtime, so over
+ * time every thread that wants the CPU receives a share in proportion to its
+ * weight. Threads with equal virtual runtimes are dequeued in the order they
+ * started waiting.
+ *
+ * <p>
+ * Time is measured with <tt>Stats.totalTicks</tt>, and charged to a thread
+ * when it gives up the CPU, and on every timer interrupt. Each thread that
+ * runs is given a slice of <tt>FairScheduler.latency</tt> ticks, divided
+ * among the running and waiting threads by weight, but no less than
+ * <tt>FairScheduler.minGranularity</tt> ticks. At a timer interrupt, the
+ * running thread is preempted once it has used its slice, or once it has run
+ * for the minimum granularity and is more than a slice ahead of the first
+ * waiting thread.
+ *
+ * <p>
+ * A thread that wakes up after blocking has its virtual runtime raised to at
+ * least half a latency below the least virtual runtime the processor's queue
+ * has seen, so that a thread that has slept for a long time gets to run soon,
+ * but can't save up enough credit to take the CPU over. A new thread starts
+ * at that least virtual runtime.
+ *
+ * <p>
+ * Only the processor's queue accounts for time; it is recognized as the
+ * queue that is acquired without transferring priority, as for
+ * <tt>MLFQScheduler</tt>. Other queues also dequeue the thread with the
+ * lowest virtual runtime. Priorities are not donated.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+        latency = Config.getInteger("FairScheduler.latency",
+                4 * Stats.TimerTicks);
+        minGranularity = Config.getInteger("FairScheduler.minGranularity",
+                Stats.TimerTicks);
+
+        Lib.assertTrue(latency > 0 && minGranularity > 0);
+
+        weights = new int[priorityMaximum - priorityMinimum + 1];
+        for (int i = 0; i < weights.length; i++) {
+            double scale =
+                    Math.pow(1.25, priorityMinimum + i - priorityDefault);
+            weights[i] = (int) Math.max(Math.round(weightDefault * scale), 1);
+        }
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param    transferPriority    ignored. Threads in a fair queue do not
+     * donate their priority.
+     * @return a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new FairQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getFairState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getFairState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        FairState state = getFairState(thread);
+
+        // the time it has run so far counts at the old weight
+        if (thread == KThread.currentThread() && processorQueue != null &&
+                state.waitQueue != processorQueue)
+            charge(state, Machine.timer().getTime());
+
+        int weight = weights[priority - priorityMinimum];
+        if (state.waitQueue != null)
+            state.waitQueue.totalWeight += weight - state.weight;
+
+        state.priority = priority;
+        state.weight = weight;
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority < priorityMaximum);
+        if (changed)
+            setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority > priorityMinimum);
+        if (changed)
+            setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (processorQueue == null)
+            return false;
+
+        FairState state = getFairState(KThread.currentThread());
+        long now = Machine.timer().getTime();
+
+        charge(state, now);
+
+        if (processorQueue.waiting.isEmpty())
+            return false;
+
+        long ran = now - state.sliceStart;
+        long slice = processorQueue.slice(state);
+        if (ran >= slice)
+            return true;
+
+        FairState first = processorQueue.waiting.first();
+        return ran >= minGranularity &&
+                first.vruntime - state.vruntime < -virtualTime(slice,
+                        weightDefault);
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 20;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 39;
+
+    /**
+     * The weight of a thread at the default priority.
+     */
+    public static final int weightDefault = 1024;
+
+    /**
+     * A thread of weight 1 that runs for one tick advances its virtual
+     * runtime by this much. It is large enough that even the heaviest
+     * thread advances by many units per tick.
+     */
+    public static final long vruntimeScale = 1L << 20;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new FairState(thread);
+
+        return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * Return the virtual runtime that a thread of the specified weight
+     * accrues by running for the specified number of ticks.
+     */
+    private static long virtualTime(long ticks, int weight) {
+        return ticks * vruntimeScale / weight;
+    }
+
+    /**
+     * Charge the current thread for the ticks since it was last charged. The
+     * thread may already be waiting in a queue other than the processor's,
+     * if it is about to block there.
+     *
+     * @param    state    the thread, which must be the current thread.
+     * @param    now    the current time.
+     */
+    private void charge(FairState state, long now) {
+        Lib.assertTrue(state.waitQueue != processorQueue);
+
+        long ran = now - state.lastCharged;
+        state.lastCharged = now;
+        if (ran == 0)
+            return;
+
+        // a thread in a tree can't move without being taken out first
+        FairQueue queue = state.waitQueue;
+        if (queue != null)
+            queue.waiting.remove(state);
+
+        state.vruntime += virtualTime(ran, state.weight);
+
+        if (queue != null)
+            queue.waiting.add(state);
+
+        processorQueue.advance(state);
+    }
+
+    private int latency;
+    private int minGranularity;
+    private int[] weights;
+
+    private FairQueue processorQueue = null;
+    private long numWaits = 0;
+
+    /**
+     * Orders threads by virtual runtime, and then by when they started
+     * waiting.
+     */
+    private final Comparator<FairState> byVruntime =
+            new Comparator<FairState>() {
+                public int compare(FairState a, FairState b) {
+                    if (a.vruntime != b.vruntime)
+                        return (a.vruntime - b.vruntime < 0) ? -1 : 1;
+
+                    return Long.compare(a.sequence, b.sequence);
+                }
+            };
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest virtual
+     * runtime. The waiting threads are kept in a red-black tree, so adding a
+     * thread or dequeuing one takes logarithmic time.
+     */
+    protected class FairQueue extends ThreadQueue {
+        FairQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            FairState state = getFairState(thread);
+            Lib.assertTrue(state.waitQueue == null);
+
+            if (thread == KThread.currentThread()) {
+                // yielding or about to block, so it has been running until
+                // now; charge it before it goes into a tree
+                if (processorQueue != null)
+                    charge(state, Machine.timer().getTime());
+            } else if (this == processorQueue) {
+                place(state);
+            }
+
+            state.sequence = numWaits++;
+            state.waitQueue = this;
+            waiting.add(state);
+            totalWeight += state.weight;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (!transferPriority)
+                processorQueue = this;
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long now = Machine.timer().getTime();
+
+            // the current thread is giving up the CPU, whether it is
+            // blocking, finishing, or yielding; a yielding thread was already
+            // charged when it started waiting here
+            if (this == processorQueue) {
+                FairState current = getFairState(KThread.currentThread());
+                if (current.waitQueue != processorQueue)
+                    charge(current, now);
+            }
+
+            if (waiting.isEmpty())
+                return null;
+
+            FairState state = waiting.pollFirst();
+            state.waitQueue = null;
+            totalWeight -= state.weight;
+
+            if (this == processorQueue) {
+                state.lastCharged = now;
+                state.sliceStart = now;
+                advance(state);
+            }
+
+            return state.thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            System.out.print("fair queue (vruntime " + minVruntime + "):");
+            for (FairState state : waiting) {
+                System.out.print(" " + state.thread + "(" +
+                        (state.vruntime - minVruntime) + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * Return the slice of the latency that the specified running thread
+         * should receive, given the threads waiting here.
+         *
+         * @param    state    the running thread, which is not waiting here.
+         * @return the number of ticks the thread should run.
+         */
+        long slice(FairState state) {
+            long slice = (long) latency * state.weight /
+                    (totalWeight + state.weight);
+
+            return Math.max(slice, minGranularity);
+        }
+
+        /**
+         * Raise the least virtual runtime seen to that of the running thread,
+         * or the first waiting thread if it is lower. This never decreases.
+         *
+         * @param    running    the thread now running.
+         */
+        void advance(FairState running) {
+            long least = running.vruntime;
+            if (!waiting.isEmpty() && waiting.first().vruntime - least < 0)
+                least = waiting.first().vruntime;
+
+            if (least - minVruntime > 0)
+                minVruntime = least;
+        }
+
+        /**
+         * Set the virtual runtime of a thread that is about to start waiting
+         * for the processor, other than by yielding.
+         */
+        private void place(FairState state) {
+            if (!state.started) {
+                state.vruntime = minVruntime;
+                state.started = true;
+                return;
+            }
+
+            long floor = minVruntime - virtualTime(latency / 2, weightDefault);
+            if (state.vruntime - floor < 0)
+                state.vruntime = floor;
+        }
+
+        /**
+         * Ignored, since priorities are not donated.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The waiting threads, and the sum of their weights.
+         */
+        TreeSet<FairState> waiting = new TreeSet<FairState>(byVruntime);
+        long totalWeight = 0;
+
+        /**
+         * The least virtual runtime seen here.
+         */
+        private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread for a fair scheduler.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class FairState {
+        /**
+         * Allocate a new <tt>FairState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public FairState(KThread thread) {
+            this.thread = thread;
+            this.weight = weights[priorityDefault - priorityMinimum];
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The thread's priority, and the weight derived from it.
+         */
+        protected int priority = priorityDefault;
+        protected int weight;
+
+        /**
+         * The thread's virtual runtime, and whether it has been set yet.
+         */
+        protected long vruntime = 0;
+        protected boolean started = false;
+
+        /**
+         * The time up to which the thread has been charged, and when it last
+         * started running.
+         */
+        protected long lastCharged = 0;
+        protected long sliceStart = 0;
+
+        /**
+         * The queue the thread is waiting in, if any, and when it started
+         * waiting there.
+         */
+        protected FairQueue waitQueue = null;
+        protected long sequence;
+    }
+}
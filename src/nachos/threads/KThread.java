@@ -266,8 +266,10 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReadyThreads++;
+        }
 
         Machine.autoGrader().readyThread(this);
     }
@@ -303,13 +305,25 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * When the idle thread finds that nothing became ready while it yielded,
+     * it skips straight to the next pending interrupt, rather than yielding
+     * once per tick until then. If no thread is waiting on the alarm either,
+     * only device input can make a thread ready, and the machine waits for
+     * it without using the host CPU.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
 
         idleThread = new KThread(new Runnable() {
             public void run() {
-                while (true) yield();
+                while (true) {
+                    yield();
+
+                    if (numReadyThreads == 0)
+                        Machine.interrupt().idle(Alarm.hasWaitingThreads());
+                }
             }
         });
         idleThread.setName("idle");
@@ -327,6 +341,8 @@ public class KThread {
         KThread nextThread = readyQueue.nextThread();
         if (nextThread == null)
             nextThread = idleThread;
+        else
+            numReadyThreads--;
 
         nextThread.run();
     }
@@ -499,6 +515,10 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /**
+     * The number of threads in <tt>readyQueue</tt>.
+     */
+    private static int numReadyThreads = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
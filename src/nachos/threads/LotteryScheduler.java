@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,12 +23,23 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Tickets are kept and transferred by <tt>TicketScheduler</tt>. Each queue
+ * keeps the tickets of its waiting threads in a Fenwick tree, so adding a
+ * thread, removing one, or drawing the winner takes logarithmic time. Draws
+ * use a generator of their own, seeded with <tt>LotteryScheduler.seed</tt>,
+ * so the winners don't depend on how often anything else draws from
+ * <tt>Lib.random()</tt>.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
+        random = Config.getInteger("LotteryScheduler.seed", 1);
+        if (random == 0)
+            random = 1;
     }
 
     /**
@@ -42,7 +51,199 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-        // implement me
-        return null;
+        return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+        return (LotteryState) getTicketState(thread);
+    }
+
+    protected TicketState newTicketState(KThread thread) {
+        return new LotteryState(thread);
+    }
+
+    /**
+     * Return a uniformly distributed random number from <tt>0</tt> to
+     * <i>bound</i><tt>-1</tt>, using an xorshift generator.
+     *
+     * @param    bound    the number of possible results.
+     * @return a random number less than <i>bound</i>.
+     */
+    private long draw(long bound) {
+        Lib.assertTrue(bound > 0);
+
+        long bits, value;
+        do {
+            random ^= random << 13;
+            random ^= random >>> 7;
+            random ^= random << 17;
+
+            bits = random >>> 1;
+            value = bits % bound;
+        } while (bits - value + (bound - 1) < 0);
+
+        return value;
+    }
+
+    private long random;
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     *
+     * <p>
+     * The waiting threads each occupy a slot. <tt>tree</tt> is a Fenwick
+     * tree over the slots' tickets, which finds the slot holding any given
+     * ticket in logarithmic time. Freed slots are reused, so the tree only
+     * grows when more threads are waiting at once than ever before.
+     */
+    protected class LotteryQueue extends TicketQueue {
+        LotteryQueue(boolean transferPriority) {
+            super(transferPriority);
+
+            waiters = new LotteryState[initialCapacity];
+            weights = new long[initialCapacity];
+            tree = new long[initialCapacity + 1];
+
+            freeSlots = new int[initialCapacity];
+            for (int i = 0; i < initialCapacity; i++)
+                freeSlots[i] = initialCapacity - 1 - i;
+            numFreeSlots = initialCapacity;
+        }
+
+        protected void enqueue(TicketState state) {
+            LotteryState lotteryState = (LotteryState) state;
+
+            if (numFreeSlots == 0)
+                grow();
+
+            int slot = freeSlots[--numFreeSlots];
+            waiters[slot] = lotteryState;
+            lotteryState.slot = slot;
+
+            addWeight(slot, state.effective);
+        }
+
+        protected TicketState dequeue() {
+            if (total == 0)
+                return null;
+
+            LotteryState winner = waiters[find(draw(total))];
+
+            addWeight(winner.slot, -weights[winner.slot]);
+            waiters[winner.slot] = null;
+            freeSlots[numFreeSlots++] = winner.slot;
+
+            return winner;
+        }
+
+        protected void effectiveChanged(TicketState state, long oldEffective) {
+            addWeight(((LotteryState) state).slot,
+                    state.effective - oldEffective);
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            System.out.print("lottery queue (" + total + " tickets):");
+            for (int i = 0; i < waiters.length; i++) {
+                if (waiters[i] != null)
+                    System.out.print(" " + waiters[i].thread + "("
+                            + weights[i] + ")");
+            }
+            System.out.println();
+        }
+
+        /**
+         * Add <i>delta</i> tickets to a slot. Does not change the total, or
+         * pass the change on to the holder.
+         */
+        private void addWeight(int slot, long delta) {
+            weights[slot] += delta;
+
+            for (int i = slot + 1; i < tree.length; i += i & -i)
+                tree[i] += delta;
+        }
+
+        /**
+         * Return the slot holding ticket number <i>ticket</i>, counting the
+         * tickets of every slot in order.
+         */
+        private int find(long ticket) {
+            int position = 0;
+
+            for (int step = Integer.highestOneBit(waiters.length); step > 0;
+                 step >>= 1) {
+                int next = position + step;
+                if (next < tree.length && tree[next] <= ticket) {
+                    position = next;
+                    ticket -= tree[next];
+                }
+            }
+
+            return position;
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree.
+         */
+        private void grow() {
+            int capacity = waiters.length;
+            int newCapacity = capacity * 2;
+
+            waiters = Arrays.copyOf(waiters, newCapacity);
+            weights = Arrays.copyOf(weights, newCapacity);
+
+            tree = new long[newCapacity + 1];
+            for (int i = 1; i <= newCapacity; i++) {
+                tree[i] += weights[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= newCapacity)
+                    tree[parent] += tree[i];
+            }
+
+            freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+            for (int i = newCapacity - 1; i >= capacity; i--)
+                freeSlots[numFreeSlots++] = i;
+        }
+
+        /**
+         * The thread waiting in each slot, and the tickets counted for it.
+         */
+        private LotteryState[] waiters;
+        private long[] weights;
+        private long[] tree;
+
+        private int[] freeSlots;
+        private int numFreeSlots;
+
+        private static final int initialCapacity = 8;
+    }
+
+    /**
+     * The scheduling state of a thread for a lottery scheduler.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState extends TicketState {
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            super(thread);
+        }
+
+        /**
+         * The thread's slot in the queue it is waiting in, if any.
+         */
+        protected int slot;
     }
 }
@@ -0,0 +1,307 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of <tt>MLFQScheduler.levels</tt> levels, and the
+ * next thread to be dequeued is always the one that has waited longest at
+ * the highest level. Threads start at the top level. A thread at level
+ * <i>n</i> may run for a quantum of <tt>MLFQScheduler.quantum</tt> times
+ * 2<sup><i>n</i></sup> ticks, in total across however many times it runs,
+ * before it drops to the next level down; so threads that use the CPU
+ * heavily sink, while threads that mostly wait for I/O stay near the top.
+ * A thread that wakes up after blocking, having used less than half its
+ * quantum, rises one level.
+ *
+ * <p>
+ * Time is charged to a thread when it gives up the CPU, and on every timer
+ * interrupt. At a timer interrupt, the running thread is preempted if it has
+ * used up its quantum, or if a thread at a higher level is waiting. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks, every thread returns to the
+ * top level, so that threads at the bottom can't starve.
+ *
+ * <p>
+ * Only the processor's queue accounts for time. It is recognized as the
+ * queue that is acquired without transferring priority, since there is
+ * nothing else a thread can be said to own without transferring priority
+ * to it (see <tt>Scheduler.newThreadQueue()</tt>). Other queues also order
+ * threads by level, but do not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+        numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+        quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+        boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+                20 * Stats.TimerTicks);
+
+        Lib.assertTrue(numLevels > 0 && numLevels <= 31);
+        Lib.assertTrue(quantum > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param    transferPriority    ignored. Threads in a multi-level
+     * feedback queue do not donate their level.
+     * @return a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new MLFQQueue(transferPriority);
+    }
+
+    public boolean timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        long now = Machine.timer().getTime();
+
+        if (now - lastBoost >= boostInterval)
+            boost(now);
+
+        if (processorQueue == null)
+            return false;
+
+        MLFQState state = getMLFQState(KThread.currentThread());
+
+        boolean expired = charge(state, now);
+
+        int waiting = processorQueue.highestLevel();
+        return (expired && waiting < numLevels) || waiting < state.level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected MLFQState getMLFQState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new MLFQState(thread);
+
+        MLFQState state = (MLFQState) thread.schedulingState;
+
+        // catch up with any boost since the thread was last looked at
+        if (state.boost != numBoosts) {
+            state.boost = numBoosts;
+            state.level = 0;
+            state.used = 0;
+        }
+
+        return state;
+    }
+
+    /**
+     * Return the quantum of a thread at the specified level.
+     */
+    private long quantum(int level) {
+        return (long) quantum << level;
+    }
+
+    /**
+     * Charge a thread for the time since it was last charged, and move it
+     * down a level if it has used up its quantum.
+     *
+     * @param    state    the thread, which must be the current thread.
+     * @param    now    the current time.
+     * @return    <tt>true</tt> if the thread used up its quantum.
+     */
+    private boolean charge(MLFQState state, long now) {
+        state.used += now - state.lastCharged;
+        state.lastCharged = now;
+
+        if (state.used < quantum(state.level))
+            return false;
+
+        if (state.level < numLevels - 1)
+            state.level++;
+        state.used = 0;
+
+        return true;
+    }
+
+    /**
+     * Return every thread to the top level. Threads waiting for the
+     * processor are moved at once, so they keep their order; any others
+     * are moved the next time they are looked at.
+     */
+    private void boost(long now) {
+        lastBoost = now;
+        numBoosts++;
+
+        if (processorQueue != null)
+            processorQueue.flatten();
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+
+    private MLFQQueue processorQueue = null;
+
+    private long lastBoost = 0;
+    private int numBoosts = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list of threads for each level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+        MLFQQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+
+            @SuppressWarnings("unchecked")
+            ArrayDeque<MLFQState>[] levels =
+                    (ArrayDeque<MLFQState>[]) new ArrayDeque<?>[numLevels];
+            for (int i = 0; i < numLevels; i++)
+                levels[i] = new ArrayDeque<MLFQState>();
+
+            this.levels = levels;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            MLFQState state = getMLFQState(thread);
+
+            if (this == processorQueue) {
+                if (thread == KThread.currentThread()) {
+                    // yielding, so it has been running until now
+                    charge(state, Machine.timer().getTime());
+                } else if (state.level > 0 &&
+                        state.used < quantum(state.level) / 2) {
+                    // woken up, after blocking early
+                    state.level--;
+                    state.used = 0;
+                }
+            }
+
+            add(state);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (!transferPriority)
+                processorQueue = this;
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            long now = Machine.timer().getTime();
+
+            // the current thread is giving up the CPU, whether or not it
+            // went through waitForAccess() first
+            if (this == processorQueue)
+                charge(getMLFQState(KThread.currentThread()), now);
+
+            if (nonEmpty == 0)
+                return null;
+
+            int level = highestLevel();
+            MLFQState state = levels[level].removeFirst();
+            if (levels[level].isEmpty())
+                nonEmpty &= ~(1 << level);
+
+            if (this == processorQueue)
+                state.lastCharged = now;
+
+            return state.thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < numLevels; i++) {
+                System.out.print("level " + i + ":");
+                for (MLFQState state : levels[i])
+                    System.out.print(" " + state.thread);
+                System.out.println();
+            }
+        }
+
+        /**
+         * Return the highest level with a waiting thread.
+         *
+         * @return the highest level waiting, or <tt>numLevels</tt> if no
+         * thread is waiting.
+         */
+        int highestLevel() {
+            return (nonEmpty == 0) ? numLevels :
+                    Integer.numberOfTrailingZeros(nonEmpty);
+        }
+
+        /**
+         * Move every waiting thread to the top level, higher levels first.
+         */
+        void flatten() {
+            for (int i = 1; i < numLevels; i++) {
+                while (!levels[i].isEmpty())
+                    levels[0].addLast(levels[i].removeFirst());
+            }
+
+            nonEmpty = levels[0].isEmpty() ? 0 : 1;
+        }
+
+        private void add(MLFQState state) {
+            levels[state.level].addLast(state);
+            nonEmpty |= 1 << state.level;
+        }
+
+        /**
+         * Ignored, since levels are not donated.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The waiting threads at each level, and a bitmask with bit <i>n</i>
+         * set when some thread at level <i>n</i> is waiting.
+         */
+        private ArrayDeque<MLFQState>[] levels;
+        private int nonEmpty = 0;
+    }
+
+    /**
+     * The scheduling state of a thread for a multi-level feedback queue
+     * scheduler.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class MLFQState {
+        /**
+         * Allocate a new <tt>MLFQState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public MLFQState(KThread thread) {
+            this.thread = thread;
+            this.boost = numBoosts;
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The thread's level, and how many ticks of its quantum it has used.
+         */
+        protected int level = 0;
+        protected long used = 0;
+        /**
+         * The time up to which the thread has been charged.
+         */
+        protected long lastCharged = 0;
+        /**
+         * The number of boosts this state has caught up with.
+         */
+        protected int boost;
+    }
+}
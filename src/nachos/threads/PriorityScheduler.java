@@ -4,7 +4,6 @@ import nachos.machine.*;
 
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -127,6 +126,21 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one list per priority, linked through
+     * their <tt>ThreadState</tt>s and ordered by the time they started
+     * waiting. A bitmask records which lists are non-empty, so finding the
+     * highest waiting priority takes constant time. A new waiter is the
+     * newest, so it is appended in constant time too; but a thread whose
+     * priority changes while it waits is placed in its new list by walking
+     * back from the tail, which takes time linear in the number of threads
+     * there that started waiting after it.
+     *
+     * <p>
+     * If the queue transfers priority, the highest waiting priority is
+     * donated to the thread holding it. The donation is updated whenever
+     * it changes, rather than recomputed whenever it is needed.
      */
     protected class PriorityQueue extends ThreadQueue {
        
@@ -134,9 +148,8 @@ public class PriorityScheduler extends Scheduler {
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
             cnt=0;
-            wait=new TreeSet[priorityMaximum+1];
-            for(int i=0;i<=priorityMaximum;i++)
-                wait[i]=new TreeSet<ThreadState>();
+            heads=new ThreadState[priorityMaximum+1];
+            tails=new ThreadState[priorityMaximum+1];
         }
 
         public void waitForAccess(KThread thread) {
@@ -147,8 +160,6 @@ public class PriorityScheduler extends Scheduler {
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             getThreadState(thread).acquire(this);
-            if(transferPriority)
-                lockholder=getThreadState(thread);
         }
 
         public KThread nextThread() {
@@ -168,38 +179,135 @@ public class PriorityScheduler extends Scheduler {
         protected ThreadState pickNextThread() {
             ThreadState res=null;
             
-            for(int i=priorityMaximum;i>=priorityMinimum;i--)
-               if((res=wait[i].pollFirst())!=null) break;
+            if(nonEmpty!=0) {
+                res=heads[highestPriority()];
+                remove(res);
+                res.waitQueue=null;
+            }
              
             if(lockholder!=null)
-            {
+                setLockholder(res);
+            return res;
+        }
+
+        /**
+         * Give this queue to a new holder, moving its donation from the old
+         * holder to the new one.
+         *
+         * @param    holder    the new holder, or <tt>null</tt> if nobody
+         * holds this queue.
+         */
+        protected void setLockholder(ThreadState holder) {
+            if(lockholder!=null) {
                 lockholder.holdQueues.remove(this);
-                lockholder=res;
-                if (res!=null){
-                    lockholder.holdQueues.add(this);
-                }
+                lockholder.changeDonation(donation,-1);
             }
-            if(res!=null) res.waitQueue=null;
-            return res;
+
+            lockholder=holder;
+            donation=-1;
+
+            if(holder!=null) {
+                holder.holdQueues.add(this);
+                updateDonation();
+            }
+        }
+
+        /**
+         * Pass a change in the highest waiting priority on to the holder.
+         * Called whenever a thread is added to this queue, or changes
+         * priority while waiting in it.
+         */
+        protected void updateDonation() {
+            int max=transferPriority?highestPriority():-1;
+
+            // nothing further along the chain can change
+            if(max==donation)
+                return;
+
+            int old=donation;
+            donation=max;
+            if(lockholder!=null)
+                lockholder.changeDonation(old,max);
         }
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me (if you want)
         }
+
+        /**
+         * Add a thread to the list for its effective priority, after every
+         * thread in it that started waiting earlier.
+         *
+         * @param    state    the thread to add.
+         */
         public void add(ThreadState state) {
-            wait[state.effectivepriority].add(state);
+            int level=state.effectivepriority;
+
+            // usually the newest, but a thread whose priority changed keeps
+            // its place among the threads at its new priority
+            ThreadState before=tails[level];
+            while(before!=null&&before.time>state.time)
+                before=before.prev;
+
+            ThreadState after=(before==null)?heads[level]:before.next;
+
+            state.prev=before;
+            state.next=after;
+            if(before==null) heads[level]=state; else before.next=state;
+            if(after==null) tails[level]=state; else after.prev=state;
+
+            nonEmpty|=1<<level;
         }
-        
+
+        /**
+         * Remove a thread from the list for its effective priority, if it is
+         * in it.
+         *
+         * @param    state    the thread to remove.
+         */
+        public void remove(ThreadState state) {
+            int level=state.effectivepriority;
+
+            if(state.prev==null&&heads[level]!=state)
+                return;
+
+            if(state.prev==null) heads[level]=state.next; else state.prev.next=state.next;
+            if(state.next==null) tails[level]=state.prev; else state.next.prev=state.prev;
+            state.prev=state.next=null;
+
+            if(heads[level]==null)
+                nonEmpty&=~(1<<level);
+        }
+
+        /**
+         * Return the highest priority of any waiting thread.
+         *
+         * @return the highest priority waiting, or <tt>-1</tt> if no thread
+         * is waiting.
+         */
+        public int highestPriority() {
+            return 31-Integer.numberOfLeadingZeros(nonEmpty);
+        }
+
         public boolean isEmpty() {
-            for(int i=0;i<=priorityMaximum;i++)
-                 if(!wait[i].isEmpty()) return false;
-            return true;
+            return nonEmpty==0;
         }
     
         protected long cnt;
   
-        protected TreeSet<ThreadState>[] wait;
+        /**
+         * The first and last waiting thread at each priority, and a bitmask
+         * with bit <i>p</i> set when some thread of priority <i>p</i> is
+         * waiting.
+         */
+        protected ThreadState[] heads, tails;
+        protected int nonEmpty=0;
         protected ThreadState lockholder=null;
+        /**
+         * The priority this queue is donating to <tt>lockholder</tt>, or
+         * <tt>-1</tt> if none.
+         */
+        protected int donation=-1;
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
@@ -245,29 +353,48 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            updateEffectivePriority();
             return effectivepriority;
 
         }
+
+        /**
+         * Recompute the effective priority from the priority and the
+         * donations received. If it changed, move the thread within the
+         * queue it is waiting in, which may change that queue's donation in
+         * turn.
+         */
         public void updateEffectivePriority() {
-        	int res=priority;
-            if(!holdQueues.isEmpty()) {
-                Iterator it=holdQueues.iterator();
-                while(it.hasNext())
-                {
-                    PriorityQueue holdQueue=(PriorityQueue)it.next();
-                    for(int i=priorityMaximum;i>res;i--)
-                        if(!holdQueue.wait[i].isEmpty()) { res=i;break;}
-                }
-            }
-            if(waitQueue!=null&&res!=effectivepriority)
+        	int res=Math.max(priority,31-Integer.numberOfLeadingZeros(donationMask));
+            if(res==effectivepriority)
+                return;
+
+            if(waitQueue!=null)
             {
-                ((PriorityQueue)waitQueue).wait[effectivepriority].remove(this);
-                ((PriorityQueue)waitQueue).wait[res].add(this);
+                PriorityQueue queue=(PriorityQueue)waitQueue;
+                queue.remove(this);
+                effectivepriority=res;
+                queue.add(this);
+                queue.updateDonation();
             }
-            effectivepriority=res;
-            if(lockholder!=null)
-                lockholder.updateEffectivePriority();
+            else
+                effectivepriority=res;
+        }
+
+        /**
+         * Replace one donation from a held queue with another.
+         *
+         * @param    oldPriority    the priority the queue was donating, or
+         * <tt>-1</tt> if none.
+         * @param    newPriority    the priority it now donates, or
+         * <tt>-1</tt> if none.
+         */
+        public void changeDonation(int oldPriority,int newPriority) {
+            if(oldPriority>=0&&--donations[oldPriority]==0)
+                donationMask&=~(1<<oldPriority);
+            if(newPriority>=0&&donations[newPriority]++==0)
+                donationMask|=1<<newPriority;
+
+            updateEffectivePriority();
         }
 
         /**
@@ -304,8 +431,7 @@ public class PriorityScheduler extends Scheduler {
             
             this.waitQueue=waitQueue;
             waitQueue.add(this);
-            lockholder=waitQueue.lockholder;
-            updateEffectivePriority();
+            waitQueue.updateDonation();
         }
 
         /**
@@ -321,7 +447,7 @@ public class PriorityScheduler extends Scheduler {
         public void acquire(PriorityQueue waitQueue) {
         	Lib.assertTrue(Machine.interrupt().disabled());
             
-            if(waitQueue.transferPriority) holdQueues.add(waitQueue);
+            if(waitQueue.transferPriority) waitQueue.setLockholder(this);
          
         }
  
@@ -329,7 +455,16 @@ public class PriorityScheduler extends Scheduler {
         protected long time;
         protected ThreadQueue waitQueue=null;
         protected LinkedList holdQueues;
-        protected ThreadState lockholder=null;
+        /**
+         * How many held queues donate each priority, and a bitmask with bit
+         * <i>p</i> set when at least one donates <i>p</i>.
+         */
+        protected int[] donations=new int[priorityMaximum+1];
+        protected int donationMask=0;
+        /**
+         * The neighbours of this thread in its wait queue's list.
+         */
+        protected ThreadState prev=null, next=null;
  
         public int compareTo(ThreadState ts) {
             if(time==ts.time) return 0;
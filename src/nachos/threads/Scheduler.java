@@ -154,4 +154,15 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * to let the scheduler preempt the current thread. The default is never
+     * to preempt it.
+     *
+     * @return    <tt>true</tt> if the current thread should yield the CPU.
+     */
+    public boolean timerInterrupt() {
+        return false;
+    }
 }
@@ -0,0 +1,279 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that shares access in proportion to tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, like a
+ * lottery scheduler. Each thread also has a <i>stride</i>, inversely
+ * proportional to its tickets, and a <i>pass</i>. The next thread to be
+ * dequeued is always the one with the lowest pass, which then advances its
+ * pass by its stride. Over any interval, every thread receives its share of
+ * accesses to within one access, without the variance of a lottery. Threads
+ * with equal passes are dequeued in the order they started waiting.
+ *
+ * <p>
+ * Each thread has a single pass, which measures its access to the
+ * processor. Only the processor's queue advances it; that queue is
+ * recognized as the one acquired without transferring priority, as for
+ * <tt>MLFQScheduler</tt>. A thread that starts waiting there has its pass
+ * raised to the queue's current pass, the pass of the last thread dequeued,
+ * so that time spent blocked can't be saved up. Other queues, such as those
+ * of locks and joins, dequeue the waiting thread with the lowest pass, but
+ * don't change passes, so how often a thread takes locks doesn't affect its
+ * share of the processor. Passes only ever increase, and eventually wrap
+ * around; they are always compared by their difference, which is correct as
+ * long as the passes being compared are within 2<sup>62</sup> of each other.
+ *
+ * <p>
+ * Tickets are kept and transferred through locks and joins by
+ * <tt>TicketScheduler</tt>, as they are for a lottery scheduler. When the
+ * tickets of a thread waiting for the processor change, the rest of its
+ * current stride is scaled to match; in any queue, it then moves to its new
+ * place.
+ */
+public class StrideScheduler extends TicketScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param    transferPriority    <tt>true</tt> if this queue should
+     * transfer tickets from waiting threads
+     * to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * The stride of a thread with one ticket. Strides are this divided by
+     * the number of tickets, so it is large enough that strides stay
+     * distinct up to billions of tickets.
+     */
+    public static final long stride1 = 1L << 40;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+        return (StrideState) getTicketState(thread);
+    }
+
+    protected TicketState newTicketState(KThread thread) {
+        return new StrideState(thread);
+    }
+
+    /**
+     * Test whether pass <i>a</i> comes before pass <i>b</i>, allowing for
+     * wrap-around.
+     */
+    private static boolean passBefore(long a, long b) {
+        return a - b < 0;
+    }
+
+    private StrideQueue processorQueue = null;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+     *
+     * <p>
+     * The waiting threads are kept in a binary min-heap, ordered by pass and
+     * then by the order they started waiting. Each thread records its
+     * position in the heap, so it can be moved when its tickets change.
+     */
+    protected class StrideQueue extends TicketQueue {
+        StrideQueue(boolean transferPriority) {
+            super(transferPriority);
+
+            heap = new StrideState[initialCapacity];
+        }
+
+        public void acquire(KThread thread) {
+            super.acquire(thread);
+
+            if (!transferPriority)
+                processorQueue = this;
+        }
+
+        protected void enqueue(TicketState ticketState) {
+            StrideState state = (StrideState) ticketState;
+
+            if (this == processorQueue) {
+                if (!state.started || passBefore(state.pass, pass))
+                    state.pass = pass;
+                state.started = true;
+            }
+            state.sequence = numWaits++;
+
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+
+            heap[size] = state;
+            state.heapIndex = size;
+            siftUp(size++);
+        }
+
+        protected TicketState dequeue() {
+            if (size == 0)
+                return null;
+
+            StrideState next = heap[0];
+            removeAt(0);
+
+            if (this == processorQueue) {
+                pass = next.pass;
+                next.pass += Math.max(stride1 / next.effective, 1);
+            }
+
+            return next;
+        }
+
+        /**
+         * Scale the rest of a waiting thread's stride to its new effective
+         * tickets, if this is the processor's queue, and move it to match.
+         *
+         * @param    ticketState    a thread waiting in this queue.
+         * @param    oldEffective    its effective tickets before the change.
+         */
+        protected void effectiveChanged(TicketState ticketState,
+                                        long oldEffective) {
+            StrideState state = (StrideState) ticketState;
+
+            if (this == processorQueue) {
+                // stays exact, where scaling through a double would round
+                long remain = state.pass - pass;
+                state.pass = pass + remain / state.effective * oldEffective +
+                        remain % state.effective * oldEffective /
+                        state.effective;
+            }
+
+            siftUp(state.heapIndex);
+            siftDown(state.heapIndex);
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            System.out.print("stride queue (pass " + pass + "):");
+            for (int i = 0; i < size; i++) {
+                System.out.print(" " + heap[i].thread + "(" +
+                        (heap[i].pass - pass) + ")");
+            }
+            System.out.println();
+        }
+
+        private boolean before(StrideState a, StrideState b) {
+            if (a.pass != b.pass)
+                return passBefore(a.pass, b.pass);
+
+            return a.sequence < b.sequence;
+        }
+
+        private void siftUp(int i) {
+            StrideState state = heap[i];
+
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(state, heap[parent]))
+                    break;
+
+                heap[i] = heap[parent];
+                heap[i].heapIndex = i;
+                i = parent;
+            }
+
+            heap[i] = state;
+            state.heapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            StrideState state = heap[i];
+
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+
+                if (!before(heap[child], state))
+                    break;
+
+                heap[i] = heap[child];
+                heap[i].heapIndex = i;
+                i = child;
+            }
+
+            heap[i] = state;
+            state.heapIndex = i;
+        }
+
+        private void removeAt(int i) {
+            StrideState last = heap[--size];
+            heap[size] = null;
+
+            if (i < size) {
+                heap[i] = last;
+                last.heapIndex = i;
+                siftUp(i);
+                siftDown(last.heapIndex);
+            }
+        }
+
+        private StrideState[] heap;
+        private int size = 0;
+
+        /**
+         * The pass of the last thread dequeued, if this is the processor's
+         * queue.
+         */
+        private long pass = 0;
+        private long numWaits = 0;
+
+        private static final int initialCapacity = 8;
+    }
+
+    /**
+     * The scheduling state of a thread for a stride scheduler.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class StrideState extends TicketState {
+        /**
+         * Allocate a new <tt>StrideState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public StrideState(KThread thread) {
+            super(thread);
+        }
+
+        /**
+         * The thread's pass, and whether it has been set yet.
+         */
+        protected long pass = 0;
+        protected boolean started = false;
+
+        /**
+         * The thread's position in the heap of the queue it is waiting in, if
+         * any, and when it started waiting there.
+         */
+        protected int heapIndex;
+        protected long sequence;
+    }
+}
@@ -95,4 +95,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
 }
@@ -0,0 +1,321 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares access in proportion to tickets. This is the part
+ * common to the lottery and stride schedulers: it keeps each thread's
+ * tickets, and transfers them through queues that transfer priority.
+ *
+ * <p>
+ * Transferred tickets add, as opposed to just taking the maximum. A thread
+ * waiting in a queue that transfers tickets gives its effective tickets to
+ * the queue's holder, which may itself be waiting in such a queue, and so
+ * on. Ticket counts are <tt>long</tt>s internally, so sums of billions of
+ * tickets don't overflow. Whenever a thread's effective tickets change, the
+ * change is passed along this chain of holders, rather than recomputed when
+ * needed; each queue on the way is told through
+ * <tt>TicketQueue.effectiveChanged()</tt>.
+ *
+ * <p>
+ * A subclass decides how each queue orders its waiting threads, by
+ * implementing <tt>newThreadQueue()</tt> with a subclass of
+ * <tt>TicketQueue</tt>, and <tt>newTicketState()</tt> with a subclass of
+ * <tt>TicketState</tt>.
+ */
+public abstract class TicketScheduler extends Scheduler {
+    /**
+     * Allocate a new ticket scheduler.
+     */
+    public TicketScheduler() {
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getTicketState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) Math.min(getTicketState(thread).effective,
+                Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        getTicketState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority < priorityMaximum);
+        if (changed)
+            setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority > priorityMinimum);
+        if (changed)
+            setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread, allocating it with
+     * <tt>newTicketState()</tt> if necessary.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected TicketState getTicketState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = newTicketState(thread);
+
+        return (TicketState) thread.schedulingState;
+    }
+
+    /**
+     * Allocate the scheduling state of a thread.
+     *
+     * @param    thread    the thread the state belongs to.
+     * @return a new scheduling state for <i>thread</i>.
+     */
+    protected abstract TicketState newTicketState(KThread thread);
+
+    /**
+     * Add <i>delta</i> tickets to a thread's effective tickets, and pass the
+     * change on to every thread it is transferring tickets to.
+     *
+     * @param    state    the first thread to change.
+     * @param    delta    the number of tickets to add.
+     */
+    private void propagate(TicketState state, long delta) {
+        if (delta == 0)
+            return;
+
+        // a deadlocked cycle would otherwise go around forever
+        long pass = ++numPropagations;
+
+        while (state != null && state.lastPropagation != pass) {
+            state.lastPropagation = pass;
+
+            long oldEffective = state.effective;
+            state.effective += delta;
+
+            TicketQueue queue = state.waitQueue;
+            if (queue == null)
+                break;
+
+            queue.total += delta;
+            queue.effectiveChanged(state, oldEffective);
+            if (!queue.transferPriority)
+                break;
+
+            state = queue.holder;
+        }
+    }
+
+    private long numPropagations = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps the total tickets of its waiting
+     * threads, and transfers them to its holder if it transfers priority. A
+     * subclass chooses the order in which the waiting threads are dequeued.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+        /**
+         * Allocate a new ticket queue.
+         *
+         * @param    transferPriority    <tt>true</tt> if this queue should
+         * transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        protected TicketQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            TicketState state = getTicketState(thread);
+            Lib.assertTrue(state.waitQueue == null);
+
+            state.waitQueue = this;
+            enqueue(state);
+
+            total += state.effective;
+            if (transferPriority && holder != null)
+                propagate(holder, state.effective);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (transferPriority)
+                setHolder(getTicketState(thread));
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            // take back everything transferred, and give what's left over to
+            // the next thread
+            if (transferPriority)
+                setHolder(null);
+
+            TicketState next = dequeue();
+            if (next != null) {
+                total -= next.effective;
+                next.waitQueue = null;
+            }
+
+            if (transferPriority)
+                setHolder(next);
+
+            return (next == null) ? null : next.thread;
+        }
+
+        /**
+         * Add a thread to the waiting threads. <tt>total</tt> does not yet
+         * include its tickets.
+         *
+         * @param    state    the thread that is starting to wait.
+         */
+        protected abstract void enqueue(TicketState state);
+
+        /**
+         * Remove and return the next thread to be dequeued, or return
+         * <tt>null</tt> if no thread is waiting. <tt>total</tt> still
+         * includes its tickets.
+         *
+         * @return the next thread, or <tt>null</tt>.
+         */
+        protected abstract TicketState dequeue();
+
+        /**
+         * Called when the effective tickets of a waiting thread change.
+         * <tt>total</tt> has already been updated, and the change will be
+         * passed on to the holder afterwards.
+         *
+         * @param    state    a thread waiting in this queue.
+         * @param    oldEffective    its effective tickets before the change.
+         */
+        protected abstract void effectiveChanged(TicketState state,
+                                                 long oldEffective);
+
+        /**
+         * Give this queue to a new holder, moving the waiting threads'
+         * tickets from the old holder to the new one.
+         *
+         * @param    newHolder    the new holder, or <tt>null</tt> if nobody
+         * holds this queue.
+         */
+        private void setHolder(TicketState newHolder) {
+            if (holder != null)
+                propagate(holder, -total);
+
+            holder = newHolder;
+
+            if (holder != null)
+                propagate(holder, total);
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The total effective tickets of the waiting threads.
+         */
+        protected long total = 0;
+
+        /**
+         * The thread holding this queue, which receives <tt>total</tt>
+         * tickets if this queue transfers tickets.
+         */
+        private TicketState holder = null;
+    }
+
+    /**
+     * The scheduling state of a thread for a ticket scheduler.
+     *
+     * @see    nachos.threads.KThread#schedulingState
+     */
+    protected class TicketState {
+        /**
+         * Allocate a new <tt>TicketState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param    thread    the thread this state belongs to.
+         */
+        public TicketState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Set the number of tickets the thread holds, changing its effective
+         * tickets by the same amount.
+         *
+         * @param    tickets    the new number of tickets.
+         */
+        public void setTickets(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+
+            propagate(this, delta);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets held by the thread, and the tickets it holds once
+         * those transferred to it are added.
+         */
+        protected int tickets = priorityDefault;
+        protected long effective = priorityDefault;
+
+        /**
+         * The queue the thread is waiting in, if any.
+         */
+        protected TicketQueue waitQueue = null;
+
+        private long lastPropagation = 0;
+    }
+}
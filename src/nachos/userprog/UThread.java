@@ -38,6 +38,7 @@ public class UThread extends KThread {
      */
     protected void saveState() {
         process.saveState();
+        process.savePerfCounters();
 
         for (int i = 0; i < Processor.numUserRegisters; i++)
             userRegisters[i] = Machine.processor().readRegister(i);
@@ -54,6 +55,7 @@ public class UThread extends KThread {
         for (int i = 0; i < Processor.numUserRegisters; i++)
             Machine.processor().writeRegister(i, userRegisters[i]);
 
+        process.restorePerfCounters();
         process.restoreState();
     }
 
@@ -87,6 +87,28 @@ public class UserProcess {
         Machine.processor().setPageTable(pageTable);
     }
 
+    /**
+     * Stop charging the processor's performance counters to this process.
+     * Called by <tt>UThread.saveState()</tt>.
+     */
+    void savePerfCounters() {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < Processor.numPerfCounters; i++)
+            perfCounters[i] += processor.readPerfCounter(i) - perfStart[i];
+    }
+
+    /**
+     * Start charging the processor's performance counters to this process.
+     * Called by <tt>UThread.restoreState()</tt>.
+     */
+    void restorePerfCounters() {
+        Processor processor = Machine.processor();
+
+        for (int i = 0; i < Processor.numPerfCounters; i++)
+            perfStart[i] = processor.readPerfCounter(i);
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read
      * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -146,14 +168,15 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
+        int memorySize = processor.getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(memory, vaddr, data, offset, amount);
+        int amount = Math.min(length, memorySize - vaddr);
+        processor.readPhysicalMemory(vaddr, data, offset, amount);
 
         return amount;
     }
@@ -189,14 +212,15 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
+        int memorySize = processor.getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(data, offset, memory, vaddr, amount);
+        int amount = Math.min(length, memorySize - vaddr);
+        processor.writePhysicalMemory(vaddr, data, offset, amount);
 
         return amount;
     }
@@ -361,6 +385,31 @@ public class UserProcess {
     	final String fileName
     }
     
+    /**
+     * Handle the getperf() system call.
+     */
+    private int handleGetPerf(int countersAddress, int count) {
+        if (count < 0)
+            return -1;
+
+        count = Math.min(count, Processor.numPerfCounters);
+
+        Processor processor = Machine.processor();
+        byte[] counters = new byte[count * 8];
+        for (int i = 0; i < count; i++) {
+            long value = perfCounters[i] +
+                    (processor.readPerfCounter(i) - perfStart[i]);
+
+            Lib.bytesFromInt(counters, i * 8, (int) value);
+            Lib.bytesFromInt(counters, i * 8 + 4, (int) (value >>> 32));
+        }
+
+        if (writeVirtualMemory(countersAddress, counters) != counters.length)
+            return -1;
+
+        return count;
+    }
+
     /**
      * Handle the halt() system call.
      */
@@ -383,7 +432,8 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallGetPerf = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -404,6 +454,8 @@ public class UserProcess {
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  getperf(unsigned int *counters, int count);
+     * 								</tt></td></tr>
      * </table>
      *
      * @param    syscall    the syscall number.
@@ -417,6 +469,8 @@ public class UserProcess {
         switch (syscall) {
             case syscallHalt:
                 return handleHalt();
+            case syscallGetPerf:
+                return handleGetPerf(a0, a1);
 
 
             default:
@@ -476,6 +530,17 @@ public class UserProcess {
     protected final int stackPages = 8;
 
     private int initialPC, initialSP;
+
+    /**
+     * Performance counts charged to this process, up to the last time it
+     * stopped running.
+     */
+    private long[] perfCounters = new long[Processor.numPerfCounters];
+    /**
+     * The processor's performance counters when this process last started
+     * running.
+     */
+    private long[] perfStart = new long[Processor.numPerfCounters];
     private int argc, argv;
 
     private static final int pageSize = Processor.pageSize;
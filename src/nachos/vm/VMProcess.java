@@ -27,9 +27,14 @@ public class VMProcess extends UserProcess {
     /**
      * Restore the state of this process after a context switch. Called by
      * <tt>UThread.restoreState()</tt>.
+     *
+     * <p>
+     * TLB entries are tagged with the ID of the process that wrote them, so
+     * the TLB does not need to be invalidated; switching the processor to this
+     * process's ID is enough.
      */
     public void restoreState() {
-        super.restoreState();
+        Machine.processor().setASID(PID);
     }
 
     /**